@@ -0,0 +1,56 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+
+/**
+ * Load an existing anthology. Anthology deletes the HTML once read, so
+ * a fresh copy is put in place before each operation.
+ * @author desmond
+ */
+public class AnthologyBench extends Bench
+{
+    static String LINK_BASE = "english/harpur/";
+    File dir;
+    File template;
+    File html;
+    /**
+     * @param items the number of works the anthology lists
+     */
+    AnthologyBench( int items )
+    {
+        super( "anthology.internalise", items );
+    }
+    void setup() throws Exception
+    {
+        dir = BenchData.scratchDir( "anthology" );
+        template = new File( dir, "template.html" );
+        String text = new BenchData().anthologyHtml( param );
+        FileIO.write( template, text.getBytes("UTF-8") );
+        html = Anthology.getFile( dir, "BENCH", LINK_BASE );
+        html.getParentFile().mkdirs();
+    }
+    void prepare() throws Exception
+    {
+        FileIO.copy( template, html );
+    }
+    Object run() throws Exception
+    {
+        return new Anthology( dir, "BENCH", LINK_BASE, "http://localhost/" );
+    }
+    void tearDown() throws Exception
+    {
+        Utils.removeDir( dir );
+    }
+}
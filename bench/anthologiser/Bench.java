@@ -0,0 +1,204 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One benchmark and the loop that measures it. Each operation is timed
+ * on its own so that prepare() can reset state outside the measurement.
+ * Allocation per operation comes from the thread's allocation counter
+ * and GC activity from the collector beans, much as JMH's gc profiler
+ * reports them.
+ * @author desmond
+ */
+public abstract class Bench
+{
+    /** the benchmark's name, e.g. "split" */
+    String name;
+    /** the size parameter, or 0 if there is none */
+    int param;
+    /** keeps results alive so the JIT can't drop the work */
+    static volatile Object sink;
+    /**
+     * Create a benchmark
+     * @param name its name
+     * @param param its size parameter or 0
+     */
+    Bench( String name, int param )
+    {
+        this.name = name;
+        this.param = param;
+    }
+    /**
+     * Build the inputs once, before any operations
+     * @throws Exception
+     */
+    void setup() throws Exception
+    {
+    }
+    /**
+     * Restore state before each operation. Not measured.
+     * @throws Exception
+     */
+    void prepare() throws Exception
+    {
+    }
+    /**
+     * Do one operation
+     * @return something depending on all the work done
+     * @throws Exception
+     */
+    abstract Object run() throws Exception;
+    /**
+     * Remove anything setup() made
+     * @throws Exception
+     */
+    void tearDown() throws Exception
+    {
+    }
+    /**
+     * Get the full name including the parameter
+     * @return e.g. "split:1000"
+     */
+    String fullName()
+    {
+        return (param!=0)?name+":"+param:name;
+    }
+    /**
+     * Get the bytes allocated so far by this thread
+     * @return the count, or -1 if the JVM doesn't keep one
+     */
+    static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean
+            = ManagementFactory.getThreadMXBean();
+        if ( bean instanceof com.sun.management.ThreadMXBean )
+        {
+            com.sun.management.ThreadMXBean sunBean
+                = (com.sun.management.ThreadMXBean)bean;
+            if ( sunBean.isThreadAllocatedMemorySupported() )
+                return sunBean.getThreadAllocatedBytes(
+                    Thread.currentThread().getId() );
+        }
+        return -1;
+    }
+    /**
+     * Get the total collections and collection time of all collectors
+     * @return an array of {count, milliseconds}
+     */
+    static long[] gcTotals()
+    {
+        long[] totals = new long[2];
+        List<GarbageCollectorMXBean> beans
+            = ManagementFactory.getGarbageCollectorMXBeans();
+        for ( int i=0;i<beans.size();i++ )
+        {
+            totals[0] += Math.max( 0, beans.get(i).getCollectionCount() );
+            totals[1] += Math.max( 0, beans.get(i).getCollectionTime() );
+        }
+        return totals;
+    }
+    /**
+     * Run a number of iterations, each lasting at least a given time
+     * @param iterations the number of iterations
+     * @param millis the minimum length of each iteration
+     * @param result the result to add measurements to or null for warmup
+     * @throws Exception
+     */
+    void iterate( int iterations, long millis, Result result )
+        throws Exception
+    {
+        for ( int i=0;i<iterations;i++ )
+        {
+            long ops = 0;
+            long elapsed = 0;
+            long allocated = 0;
+            long[] gcStart = gcTotals();
+            long deadline = System.nanoTime()+millis*1000000L;
+            do
+            {
+                prepare();
+                long a0 = allocatedBytes();
+                long t0 = System.nanoTime();
+                sink = run();
+                long t1 = System.nanoTime();
+                long a1 = allocatedBytes();
+                elapsed += t1-t0;
+                allocated += a1-a0;
+                ops++;
+            }
+            while ( System.nanoTime() < deadline );
+            long[] gcEnd = gcTotals();
+            if ( result != null )
+            {
+                result.times.add( (double)elapsed/ops/1000.0 );
+                result.allocs.add( (double)allocated/ops );
+                result.gcCount += gcEnd[0]-gcStart[0];
+                result.gcTime += gcEnd[1]-gcStart[1];
+                result.ops += ops;
+            }
+        }
+    }
+    /**
+     * Measurements of one benchmark
+     */
+    static class Result
+    {
+        Bench bench;
+        /** average microseconds per operation in each iteration */
+        ArrayList<Double> times;
+        /** average bytes allocated per operation in each iteration */
+        ArrayList<Double> allocs;
+        long gcCount;
+        long gcTime;
+        long ops;
+        Result( Bench bench )
+        {
+            this.bench = bench;
+            times = new ArrayList<Double>();
+            allocs = new ArrayList<Double>();
+        }
+        /**
+         * Get the mean of some measurements
+         * @param values the measurements
+         * @return their mean
+         */
+        static double mean( ArrayList<Double> values )
+        {
+            double total = 0.0;
+            for ( int i=0;i<values.size();i++ )
+                total += values.get(i);
+            return (values.size()>0)?total/values.size():0.0;
+        }
+        /**
+         * Get the standard error of the mean, as JMH reports it
+         * @param values the measurements
+         * @return the error or 0 if there is only one
+         */
+        static double error( ArrayList<Double> values )
+        {
+            int n = values.size();
+            if ( n < 2 )
+                return 0.0;
+            double m = mean( values );
+            double sum = 0.0;
+            for ( int i=0;i<n;i++ )
+                sum += (values.get(i)-m)*(values.get(i)-m);
+            return Math.sqrt( sum/(n-1) )/Math.sqrt( n );
+        }
+    }
+}
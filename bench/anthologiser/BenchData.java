@@ -0,0 +1,137 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Synthetic inputs for the benchmarks. Everything is generated from a
+ * fixed seed so that runs can be compared.
+ * @author desmond
+ */
+public class BenchData
+{
+    static String[] WORDS = {"the","and","of","a","in","to","his","sweet",
+        "o'er","river","night","morn","bright","wild","hills","Australia",
+        "dream","thy","heart","wind","forest","lone","shore","song","glory",
+        "freedom","bush","creek","dawn","pale","tempest","evening","star"};
+    Random rand;
+    BenchData()
+    {
+        rand = new Random( 42 );
+    }
+    /**
+     * Get a random word
+     * @return a word from WORDS
+     */
+    String word()
+    {
+        return WORDS[rand.nextInt(WORDS.length)];
+    }
+    /**
+     * Make a title in upper case, the way sources have them
+     * @param nWords the number of words
+     * @return the title
+     */
+    String title( int nWords )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i=0;i<nWords;i++ )
+        {
+            if ( i > 0 )
+                sb.append( (rand.nextInt(8)==0)?"-":" " );
+            sb.append( word().toUpperCase() );
+        }
+        return sb.toString();
+    }
+    /**
+     * Make a line of verse
+     * @return the words of the line
+     */
+    String line()
+    {
+        StringBuilder sb = new StringBuilder();
+        int n = 5+rand.nextInt(5);
+        for ( int i=0;i<n;i++ )
+        {
+            if ( i > 0 )
+                sb.append(' ');
+            sb.append( word() );
+        }
+        if ( rand.nextInt(10)==0 )
+            sb.append( " &amp; more" );
+        return sb.toString();
+    }
+    /**
+     * Make a source anthology in the shape PoemSplitter expects
+     * @param poems the number of poems
+     * @param lines the number of lines in each poem
+     * @param notes the number of MJS notes in each poem
+     * @return the source's XML
+     */
+    String source( int poems, int lines, int notes ) throws Exception
+    {
+        CorpusGenerator gen = new CorpusGenerator();
+        gen.data = this;
+        gen.lines = lines;
+        gen.notes = notes;
+        StringBuilder sb = new StringBuilder();
+        CorpusGenerator.writeHeader( sb );
+        for ( int i=0;i<poems;i++ )
+            gen.writePoem( sb, title(3), "H"+(i+1)+"a", "Bench MS", i+1 );
+        CorpusGenerator.writeFooter( sb );
+        return sb.toString();
+    }
+    /**
+     * Make an anthology file in the HTML form Anthology.internalise reads
+     * @param items the number of works listed
+     * @return the HTML
+     */
+    String anthologyHtml( int items )
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<h1>Bench anthology</h1>\n<h2>Bench MS</h2>\n");
+        for ( int i=0;i<items;i++ )
+        {
+            sb.append("<p><a href=\"english/harpur/h").append( i );
+            sb.append("\">").append( title(4) ).append("</a></p>\n");
+        }
+        return sb.toString();
+    }
+    /**
+     * Make work keys like those in a FileMap
+     * @param n the number of keys
+     * @return the keys, unique and unsorted
+     */
+    String[] keys( int n )
+    {
+        String[] keys = new String[n];
+        for ( int i=0;i<n;i++ )
+            keys[i] = "%"+word()+"-"+i;
+        return keys;
+    }
+    /**
+     * Make a scratch directory for a benchmark to remove in tearDown
+     * @param name a prefix for its name
+     * @return the empty directory
+     * @throws Exception
+     */
+    static File scratchDir( String name ) throws Exception
+    {
+        File dir = File.createTempFile( name, "" );
+        if ( !dir.delete() || !dir.mkdir() )
+            throw new Exception("Couldn't create "+dir.getPath());
+        return dir;
+    }
+}
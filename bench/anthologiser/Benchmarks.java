@@ -0,0 +1,228 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Run the benchmarks of the hot paths and write the results as JSON.
+ * Each is warmed up, then measured for several iterations of a fixed 
+ * time. Time is per operation; allocation and GC are reported as JMH's
+ * gc profiler does, as secondary metrics.
+ * @author desmond
+ */
+public class Benchmarks
+{
+    /** warmup iterations */
+    int warmups;
+    /** measured iterations */
+    int iterations;
+    /** length of an iteration in milliseconds */
+    long millis;
+    /** only run benchmarks whose full names contain this */
+    String filter;
+    /** the JSON results file */
+    File output;
+    ArrayList<Bench> benches;
+    Benchmarks()
+    {
+        warmups = 3;
+        iterations = 5;
+        millis = 1000;
+        filter = "";
+        output = new File( "bench-results.json" );
+        benches = new ArrayList<Bench>();
+        benches.add( new SplitBench("split",100,0) );
+        benches.add( new SplitBench("split",1000,0) );
+        benches.add( new SplitBench("split.notes",1000,4) );
+        benches.add( new SplitBench("split.parallel",1000,4,
+            Math.max(2,Runtime.getRuntime().availableProcessors())) );
+        benches.add( new FileMapBench(1000) );
+        benches.add( new FileMapBench(10000) );
+        benches.add( new FileMapBench(100000) );
+        benches.add( new UniquePrefixBench(1000) );
+        benches.add( new UniquePrefixBench(10000) );
+        benches.add( new UniquePrefixBench(100000) );
+        benches.add( new TitleBench(1000,false) );
+        benches.add( new TitleBench(1000,true) );
+        benches.add( new CompareBench(1000) );
+        benches.add( new CompareBench(10000) );
+        benches.add( new AnthologyBench(1000) );
+        benches.add( new AnthologyBench(10000) );
+        benches.add( new RegistryBench(100) );
+        benches.add( new RegistryBench(1000) );
+    }
+    /**
+     * Tell the user how to use this application
+     */
+    private static void usage()
+    {
+        System.out.println( "usage: java anthologiser.Benchmarks [-w warmups] "
+            +"[-i iterations] [-t millis] [-o results.json] [name-filter]" );
+    }
+    /**
+     * Read the command line
+     * @param args the arguments
+     * @return true if they were valid
+     */
+    boolean checkArgs( String[] args )
+    {
+        try
+        {
+            for ( int i=0;i<args.length;i++ )
+            {
+                if ( args[i].equals("-w") && i<args.length-1 )
+                    warmups = Integer.parseInt( args[++i] );
+                else if ( args[i].equals("-i") && i<args.length-1 )
+                    iterations = Integer.parseInt( args[++i] );
+                else if ( args[i].equals("-t") && i<args.length-1 )
+                    millis = Long.parseLong( args[++i] );
+                else if ( args[i].equals("-o") && i<args.length-1 )
+                    output = new File( args[++i] );
+                else if ( args[i].startsWith("-") )
+                    return false;
+                else
+                    filter = args[i];
+            }
+            return iterations > 0;
+        }
+        catch ( NumberFormatException e )
+        {
+            return false;
+        }
+    }
+    /**
+     * Run every benchmark that passes the filter
+     * @return their results
+     * @throws Exception
+     */
+    ArrayList<Bench.Result> runAll() throws Exception
+    {
+        ArrayList<Bench.Result> results = new ArrayList<Bench.Result>();
+        for ( int i=0;i<benches.size();i++ )
+        {
+            Bench b = benches.get( i );
+            if ( b.fullName().contains(filter) )
+            {
+                System.out.println( "# "+b.fullName() );
+                Bench.Result r = new Bench.Result( b );
+                b.setup();
+                try
+                {
+                    b.iterate( warmups, millis, null );
+                    b.iterate( iterations, millis, r );
+                }
+                finally
+                {
+                    b.tearDown();
+                }
+                System.out.println( String.format(Locale.ROOT,
+                    "%-32s %12.3f us/op %14.0f B/op %5d gcs",
+                    b.fullName(), Bench.Result.mean(r.times),
+                    Bench.Result.mean(r.allocs), r.gcCount) );
+                results.add( r );
+            }
+        }
+        return results;
+    }
+    /**
+     * Format a number for JSON
+     * @param d the number
+     * @return its text
+     */
+    private static String num( double d )
+    {
+        return String.format( Locale.ROOT, "%.3f", d );
+    }
+    /**
+     * Format a list of measurements as a JSON array
+     * @param values the measurements
+     * @return the array's text
+     */
+    private static String array( ArrayList<Double> values )
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for ( int i=0;i<values.size();i++ )
+        {
+            if ( i > 0 )
+                sb.append(",");
+            sb.append( num(values.get(i)) );
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+    /**
+     * Write the results in the layout JMH uses for JSON
+     * @param results the results
+     * @throws Exception
+     */
+    void writeResults( ArrayList<Bench.Result> results ) throws Exception
+    {
+        StringBuilder sb = new StringBuilder("[\n");
+        for ( int i=0;i<results.size();i++ )
+        {
+            Bench.Result r = results.get( i );
+            sb.append("  {\n");
+            sb.append("    \"benchmark\": \"").append(r.bench.name).append("\",\n");
+            sb.append("    \"mode\": \"avgt\",\n");
+            sb.append("    \"warmupIterations\": ").append(warmups).append(",\n");
+            sb.append("    \"measurementIterations\": ").append(iterations).append(",\n");
+            sb.append("    \"measurementTime\": \"").append(millis).append(" ms\",\n");
+            sb.append("    \"params\": { \"size\": \"").append(r.bench.param).append("\" },\n");
+            sb.append("    \"primaryMetric\": {\n");
+            sb.append("      \"score\": ").append(num(Bench.Result.mean(r.times))).append(",\n");
+            sb.append("      \"scoreError\": ").append(num(Bench.Result.error(r.times))).append(",\n");
+            sb.append("      \"scoreUnit\": \"us/op\",\n");
+            sb.append("      \"rawData\": [").append(array(r.times)).append("]\n");
+            sb.append("    },\n");
+            sb.append("    \"secondaryMetrics\": {\n");
+            sb.append("      \"gc.alloc.rate.norm\": { \"score\": ");
+            sb.append(num(Bench.Result.mean(r.allocs)));
+            sb.append(", \"scoreUnit\": \"B/op\", \"rawData\": [");
+            sb.append(array(r.allocs)).append("] },\n");
+            sb.append("      \"gc.count\": { \"score\": ").append(r.gcCount);
+            sb.append(", \"scoreUnit\": \"counts\" },\n");
+            sb.append("      \"gc.time\": { \"score\": ").append(r.gcTime);
+            sb.append(", \"scoreUnit\": \"ms\" },\n");
+            sb.append("      \"ops\": { \"score\": ").append(r.ops);
+            sb.append(", \"scoreUnit\": \"ops\" }\n");
+            sb.append("    }\n");
+            sb.append("  }");
+            if ( i < results.size()-1 )
+                sb.append(",");
+            sb.append("\n");
+        }
+        sb.append("]\n");
+        FileIO.write( output, sb.toString().getBytes("UTF-8") );
+    }
+    public static void main( String[] args )
+    {
+        Benchmarks b = new Benchmarks();
+        if ( b.checkArgs(args) )
+        {
+            try
+            {
+                b.writeResults( b.runAll() );
+                System.out.println( "Results written to "+b.output.getPath() );
+            }
+            catch ( Exception e )
+            {
+                e.printStackTrace( System.out );
+            }
+        }
+        else
+            usage();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.util.Arrays;
+
+/**
+ * Sort titles ignoring punctuation
+ * @author desmond
+ */
+public class CompareBench extends Bench
+{
+    PunctIgnoreString[] titles;
+    PunctIgnoreString[] copy;
+    /**
+     * @param n the number of titles to sort
+     */
+    CompareBench( int n )
+    {
+        super( "punctIgnoreString.compareTo", n );
+    }
+    void setup() throws Exception
+    {
+        BenchData data = new BenchData();
+        titles = new PunctIgnoreString[param];
+        for ( int i=0;i<titles.length;i++ )
+        {
+            String t = Titeliser.getTitle( data.title(2+i%5) );
+            if ( i%3 == 0 )
+                t = "\""+t+",\"";
+            titles[i] = new PunctIgnoreString( t );
+        }
+        copy = new PunctIgnoreString[param];
+    }
+    void prepare() throws Exception
+    {
+        System.arraycopy( titles, 0, copy, 0, titles.length );
+    }
+    Object run() throws Exception
+    {
+        Arrays.sort( copy );
+        return copy;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.Writer;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Write a synthetic corpus of source anthologies in the shape the 
+ * splitter expects, with a works table to go with them. Each work has 
+ * several versions, each in a different source, so the corpus exercises 
+ * the merging of versions into works as well as splitting.
+ * @author desmond
+ */
+public class CorpusGenerator
+{
+    /** total number of poems (versions) across all sources */
+    int poems;
+    /** versions of each work */
+    int versions;
+    /** number of source files */
+    int sources;
+    /** lines per poem */
+    int lines;
+    /** hversion divs per poem: the last one names the version */
+    int hversions;
+    /** MJS note divs per hversion div */
+    int notes;
+    /** source description divs per hversion div */
+    int descriptions;
+    BenchData data;
+    CorpusGenerator()
+    {
+        poems = 1000;
+        versions = 2;
+        sources = 10;
+        lines = 12;
+        hversions = 1;
+        notes = 1;
+        descriptions = 1;
+        data = new BenchData();
+    }
+    /**
+     * Get the ID of a version
+     * @param work the work's number from 1
+     * @param version the version's number from 0
+     * @return e.g. H12b
+     */
+    static String versionID( int work, int version )
+    {
+        StringBuilder sb = new StringBuilder("H");
+        sb.append( work );
+        do
+        {
+            sb.append( (char)('a'+version%26) );
+            version /= 26;
+        }
+        while ( version > 0 );
+        return sb.toString();
+    }
+    /**
+     * Write the start of a source
+     * @param out where to write it
+     */
+    static void writeHeader( Appendable out ) throws IOException
+    {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.append("<TEI><teiHeader><title>generated</title></teiHeader>\n");
+        out.append("<text><body>\n");
+    }
+    /**
+     * Write the end of a source
+     * @param out where to write it
+     */
+    static void writeFooter( Appendable out ) throws IOException
+    {
+        out.append("</body></text></TEI>\n");
+    }
+    /**
+     * Write one poem
+     * @param out where to write it
+     * @param title the poem's title in the boundary comment
+     * @param hVersion its version ID
+     * @param msName the name of its source for the description
+     * @param page its page number for the description
+     */
+    void writePoem( Appendable out, String title, String hVersion, 
+        String msName, int page ) throws IOException
+    {
+        out.append("<!-- *** ").append( title ).append(" -->\n");
+        for ( int h=0;h<hversions;h++ )
+        {
+            out.append("<div type=\"hversion\" xml:id=\"");
+            out.append( hVersion ).append("\">\n");
+            for ( int d=0;d<descriptions;d++ )
+            {
+                out.append("<div type=\"source\"><p>").append( msName );
+                out.append(", <hi>").append( data.word() ).append("</hi>, p. ");
+                out.append( Integer.toString(page) ).append("</p></div>\n");
+            }
+            out.append("<lg>\n");
+            for ( int j=0;j<lines;j++ )
+            {
+                out.append("<l n=\"").append( Integer.toString(j+1) );
+                out.append("\">").append( data.line() ).append("</l>\n");
+            }
+            out.append("</lg>\n");
+            for ( int j=0;j<notes;j++ )
+            {
+                out.append("<div type=\"mjsnote\"><p>");
+                out.append( data.line() ).append("</p><p><hi rend=\"it\">");
+                out.append( data.word() ).append("</hi> ");
+                out.append( data.line() ).append("</p></div>\n");
+            }
+            out.append("</div>\n");
+        }
+    }
+    /**
+     * Write the corpus
+     * @param dir the directory to write it in
+     * @return the source files in run order
+     * @throws Exception
+     */
+    ArrayList<File> generate( File dir ) throws Exception
+    {
+        if ( !dir.exists() && !dir.mkdirs() )
+            throw new Exception("Couldn't create "+dir.getPath());
+        int nWorks = (poems+versions-1)/versions;
+        ArrayList<File> files = new ArrayList<File>();
+        Writer[] writers = new Writer[sources];
+        int[] pages = new int[sources];
+        Writer works = open( new File(dir,"works.csv") );
+        try
+        {
+            for ( int i=0;i<sources;i++ )
+            {
+                File f = new File( dir, String.format("MS%03d.xml",i+1) );
+                files.add( f );
+                writers[i] = open( f );
+                writeHeader( writers[i] );
+            }
+            int written = 0;
+            for ( int w=1;w<=nWorks;w++ )
+            {
+                String title = data.title( 2+w%5 );
+                works.write( "H"+w+"\t"+title+"\n" );
+                for ( int v=0;v<versions&&written<poems;v++,written++ )
+                {
+                    int s = (w+v)%sources;
+                    writePoem( writers[s], title, versionID(w,v), 
+                        "Generated MS "+(s+1), ++pages[s] );
+                }
+            }
+            for ( int i=0;i<sources;i++ )
+                writeFooter( writers[i] );
+        }
+        finally
+        {
+            works.close();
+            for ( int i=0;i<sources;i++ )
+                if ( writers[i] != null )
+                    writers[i].close();
+        }
+        return files;
+    }
+    private static Writer open( File f ) throws IOException
+    {
+        return new BufferedWriter( new OutputStreamWriter(
+            new FileOutputStream(f), "UTF-8") );
+    }
+    /**
+     * Tell the user how to use this application
+     */
+    private static void usage()
+    {
+        System.out.println( "usage: java anthologiser.CorpusGenerator "
+            +"[-p poems] [-v versions-per-work] [-s sources] [-l lines] "
+            +"[-h hversion-divs] [-n notes] [-d descriptions] dir" );
+    }
+    /**
+     * Read the options shared with ScaleBench
+     * @param args the arguments
+     * @param i the index of the option
+     * @return true if it was one of ours
+     */
+    boolean setOption( String[] args, int i )
+    {
+        if ( i >= args.length-1 )
+            return false;
+        int value = Integer.parseInt( args[i+1] );
+        if ( args[i].equals("-p") )
+            poems = value;
+        else if ( args[i].equals("-v") )
+            versions = Math.max( 1, value );
+        else if ( args[i].equals("-s") )
+            sources = Math.max( 1, value );
+        else if ( args[i].equals("-l") )
+            lines = value;
+        else if ( args[i].equals("-h") )
+            hversions = Math.max( 1, value );
+        else if ( args[i].equals("-n") )
+            notes = value;
+        else if ( args[i].equals("-d") )
+            descriptions = value;
+        else
+            return false;
+        return true;
+    }
+    public static void main( String[] args )
+    {
+        CorpusGenerator gen = new CorpusGenerator();
+        File dir = null;
+        boolean sane = true;
+        try
+        {
+            for ( int i=0;i<args.length;i++ )
+            {
+                if ( gen.setOption(args,i) )
+                    i++;
+                else if ( !args[i].startsWith("-") )
+                    dir = new File( args[i] );
+                else
+                    sane = false;
+            }
+            if ( sane && dir != null )
+            {
+                ArrayList<File> files = gen.generate( dir );
+                System.out.println( "Wrote "+gen.poems+" poems in "
+                    +files.size()+" sources to "+dir.getPath() );
+            }
+            else
+                usage();
+        }
+        catch ( NumberFormatException e )
+        {
+            usage();
+        }
+        catch ( Exception e )
+        {
+            e.printStackTrace( System.out );
+        }
+    }
+}
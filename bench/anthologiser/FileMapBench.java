@@ -0,0 +1,71 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.util.HashMap;
+
+/**
+ * Bucket and name the subfolders of a FileMap. The works are neither
+ * new nor changed, so save does no writing beyond making the bucket
+ * folders, which are removed again as empty.
+ * @author desmond
+ */
+public class FileMapBench extends Bench
+{
+    File dir;
+    File dst;
+    FileMap poems;
+    HashMap<String,Anthology> anthologies;
+    /**
+     * @param keys the number of works in the map
+     */
+    FileMapBench( int keys )
+    {
+        super( "fileMap.save", keys );
+    }
+    void setup() throws Exception
+    {
+        dir = BenchData.scratchDir( "filemap" );
+        dst = new File( dir, "out" );
+        dst.mkdir();
+        // FileMap clears FILEMAP in the temp dir: use our own
+        String tmp = System.getProperty( "java.io.tmpdir" );
+        System.setProperty( "java.io.tmpdir", dir.getPath() );
+        try
+        {
+            poems = new FileMap( dst );
+        }
+        finally
+        {
+            System.setProperty( "java.io.tmpdir", tmp );
+        }
+        String[] keys = new BenchData().keys( param );
+        for ( int i=0;i<keys.length;i++ )
+        {
+            MultiFormatDir mfd = new MultiFormatDir( poems.getTempDir(), 
+                null, "" );
+            poems.put( keys[i], mfd );
+        }
+        anthologies = new HashMap<String,Anthology>();
+    }
+    Object run() throws Exception
+    {
+        poems.save( dst, anthologies, true, 0 );
+        return poems;
+    }
+    void tearDown() throws Exception
+    {
+        Utils.removeDir( dir );
+    }
+}
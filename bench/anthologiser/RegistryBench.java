@@ -0,0 +1,83 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+
+/**
+ * Load the anthology registry when a run without -j has left some
+ * anthologies unjoined since it was saved. Half the anthologies are
+ * already registered and joined; the rest still carry their description
+ * and must be folded in. The unjoined files are put back before each
+ * operation, and each load is checked.
+ * @author desmond
+ */
+public class RegistryBench extends Bench
+{
+    File dir;
+    File anthologies;
+    File templates;
+    /**
+     * @param count the number of anthologies in the folder
+     */
+    RegistryBench( int count )
+    {
+        super( "registry.fold", count );
+    }
+    void setup() throws Exception
+    {
+        dir = BenchData.scratchDir( "registry" );
+        anthologies = new File( dir, "anthologies" );
+        templates = new File( dir, "templates" );
+        if ( !anthologies.mkdir() || !templates.mkdir() )
+            throw new Exception("Couldn't create "+dir.getPath());
+        BenchData data = new BenchData();
+        for ( int i=0;i<param;i++ )
+        {
+            String list = "<ul>\n<li><a href=\"http://localhost/"
+                +"mvdsingle?DOC_ID=english/harpur/h"+i+"\">"
+                +data.title(4)+"</a></li>\n</ul>";
+            String name = "MS"+i;
+            if ( i % 2 == 0 )
+                FileIO.write( new File(anthologies,name),
+                    list.getBytes("UTF-8") );
+            else
+                FileIO.write( new File(templates,name),
+                    ("<li>"+name+" Library MS"+list+"</li>").getBytes("UTF-8") );
+        }
+        AnthologyRegistry registry = new AnthologyRegistry( anthologies );
+        for ( int i=0;i<param;i+=2 )
+            registry.register( "MS"+i, "MS"+i+" Library MS",
+                Anthologiser.MISC_URL+"ms"+i );
+        registry.externalise();
+    }
+    void prepare() throws Exception
+    {
+        File[] files = templates.listFiles();
+        for ( int i=0;i<files.length;i++ )
+            FileIO.copy( files[i], new File(anthologies,files[i].getName()) );
+    }
+    Object run() throws Exception
+    {
+        AnthologyRegistry registry = new AnthologyRegistry( anthologies );
+        AnthologyRegistry.Entry e = registry.entries.get( "MS1" );
+        if ( registry.entries.size() != param || e == null
+            || !e.description.equals("MS1 Library MS") )
+            throw new Exception("Unjoined anthologies weren't registered");
+        return registry;
+    }
+    void tearDown() throws Exception
+    {
+        Utils.removeDir( dir );
+    }
+}
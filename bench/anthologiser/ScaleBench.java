@@ -0,0 +1,356 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Run the whole pipeline over generated corpora of increasing size and
+ * report how wall time, peak memory and output grow. Each size runs in 
+ * its own JVM so that peak RSS belongs to that run alone.
+ * @author desmond
+ */
+public class ScaleBench
+{
+    static String RESULT = "RESULT";
+    /** corpus sizes in poems */
+    ArrayList<Integer> sizes;
+    /** worker threads for the Anthologiser */
+    int threads;
+    /** maximum heap of each run, e.g. "2g" */
+    String heap;
+    /** the JSON results file */
+    File output;
+    /** if true keep the corpora and output */
+    boolean keep;
+    CorpusGenerator gen;
+    ScaleBench()
+    {
+        sizes = new ArrayList<Integer>();
+        threads = 1;
+        heap = "2g";
+        output = new File( "scaling-results.json" );
+        gen = new CorpusGenerator();
+    }
+    /**
+     * Measurements of one run
+     */
+    static class Run
+    {
+        int poems;
+        long wallMillis;
+        long peakRssKB;
+        long peakHeapBytes;
+        long files;
+        long bytes;
+    }
+    /**
+     * Tell the user how to use this application
+     */
+    private static void usage()
+    {
+        System.out.println( "usage: java anthologiser.ScaleBench "
+            +"[-z 1000,10000,100000] [-t threads] [-x heap] [-o results.json] "
+            +"[-k] [corpus options as for CorpusGenerator]" );
+    }
+    /**
+     * Read the command line
+     * @param args the arguments
+     * @return true if they were valid
+     */
+    boolean checkArgs( String[] args )
+    {
+        try
+        {
+            for ( int i=0;i<args.length;i++ )
+            {
+                if ( args[i].equals("-k") )
+                    keep = true;
+                else if ( i == args.length-1 )
+                    return false;
+                else if ( args[i].equals("-z") )
+                {
+                    String[] parts = args[++i].split(",");
+                    for ( int j=0;j<parts.length;j++ )
+                        sizes.add( Integer.parseInt(parts[j].trim()) );
+                }
+                else if ( args[i].equals("-t") )
+                    threads = Integer.parseInt( args[++i] );
+                else if ( args[i].equals("-x") )
+                    heap = args[++i];
+                else if ( args[i].equals("-o") )
+                    output = new File( args[++i] );
+                else if ( gen.setOption(args,i) )
+                    i++;
+                else
+                    return false;
+            }
+            if ( sizes.isEmpty() )
+            {
+                sizes.add( 1000 );
+                sizes.add( 10000 );
+                sizes.add( 100000 );
+            }
+            return true;
+        }
+        catch ( NumberFormatException e )
+        {
+            return false;
+        }
+    }
+    /**
+     * Count the files and bytes under a directory
+     * @param dir the directory
+     * @param totals {files, bytes} to add to
+     */
+    static void count( File dir, long[] totals )
+    {
+        File[] files = dir.listFiles();
+        if ( files != null )
+        {
+            for ( int i=0;i<files.length;i++ )
+            {
+                if ( files[i].isDirectory() )
+                    count( files[i], totals );
+                else
+                {
+                    totals[0]++;
+                    totals[1] += files[i].length();
+                }
+            }
+        }
+    }
+    /**
+     * Generate a corpus and run the pipeline over it in a new JVM
+     * @param poems the size of the corpus
+     * @return the measurements
+     * @throws Exception
+     */
+    Run runOne( int poems ) throws Exception
+    {
+        File dir = BenchData.scratchDir( "scale" );
+        try
+        {
+            gen.poems = poems;
+            ArrayList<File> srcs = gen.generate( new File(dir,"corpus") );
+            File out = new File( dir, "out" );
+            File tmp = new File( dir, "tmp" );
+            out.mkdir();
+            tmp.mkdir();
+            ArrayList<String> cmd = new ArrayList<String>();
+            cmd.add( System.getProperty("java.home")+"/bin/java" );
+            cmd.add( "-Xmx"+heap );
+            cmd.add( "-Djava.io.tmpdir="+tmp.getPath() );
+            cmd.add( "-cp" );
+            cmd.add( System.getProperty("java.class.path") );
+            cmd.add( ScaleBench.class.getName() );
+            cmd.add( "--child" );
+            cmd.add( "-w" );
+            cmd.add( new File(dir,"corpus/works.csv").getPath() );
+            cmd.add( "-f" );
+            cmd.add( "_h/+english/harpur/" );
+            cmd.add( "-l" );
+            cmd.add( "english/harpur/" );
+            cmd.add( "-t" );
+            cmd.add( Integer.toString(threads) );
+            for ( int i=0;i<srcs.size();i++ )
+                cmd.add( srcs.get(i).getPath() );
+            ProcessBuilder pb = new ProcessBuilder( cmd );
+            pb.directory( out );
+            pb.redirectErrorStream( true );
+            Process p = pb.start();
+            Run run = null;
+            BufferedReader br = new BufferedReader( 
+                new InputStreamReader(p.getInputStream(),"UTF-8") );
+            String line;
+            while ( (line=br.readLine()) != null )
+            {
+                if ( line.startsWith(RESULT) )
+                {
+                    String[] parts = line.split(" ");
+                    run = new Run();
+                    run.poems = poems;
+                    run.wallMillis = Long.parseLong( parts[1] );
+                    run.peakRssKB = Long.parseLong( parts[2] );
+                    run.peakHeapBytes = Long.parseLong( parts[3] );
+                }
+                else if ( line.contains("Exception") )
+                    System.out.println( line );
+            }
+            if ( p.waitFor() != 0 || run == null )
+                throw new Exception("Run of "+poems+" poems failed");
+            long[] totals = new long[2];
+            count( out, totals );
+            run.files = totals[0];
+            run.bytes = totals[1];
+            return run;
+        }
+        finally
+        {
+            if ( keep )
+                System.out.println( "Kept "+dir.getPath() );
+            else
+                Utils.removeDir( dir );
+        }
+    }
+    /**
+     * Get the growth exponent between two runs: 1 is linear
+     * @param a the smaller run
+     * @param b the larger run
+     * @return the slope of log(time) against log(poems)
+     */
+    static double exponent( Run a, Run b )
+    {
+        if ( a.wallMillis <= 0 || b.poems == a.poems )
+            return 0.0;
+        return Math.log( (double)b.wallMillis/a.wallMillis )
+            / Math.log( (double)b.poems/a.poems );
+    }
+    /**
+     * Print the scaling curve and write it as JSON
+     * @param runs the runs in order of size
+     * @throws Exception
+     */
+    void report( ArrayList<Run> runs ) throws Exception
+    {
+        System.out.println( String.format(Locale.ROOT, "%10s %10s %10s %10s %10s %12s %8s",
+            "poems","wall ms","us/poem","rss MB","heap MB","files","exp") );
+        StringBuilder sb = new StringBuilder("{\n");
+        sb.append("  \"threads\": ").append(threads).append(",\n");
+        sb.append("  \"versionsPerWork\": ").append(gen.versions).append(",\n");
+        sb.append("  \"sources\": ").append(gen.sources).append(",\n");
+        sb.append("  \"notes\": ").append(gen.notes).append(",\n");
+        sb.append("  \"runs\": [\n");
+        for ( int i=0;i<runs.size();i++ )
+        {
+            Run r = runs.get( i );
+            double exp = (i>0)?exponent(runs.get(i-1),r):0.0;
+            System.out.println( String.format(Locale.ROOT,
+                "%10d %10d %10.1f %10.1f %10.1f %12d %8s", r.poems,
+                r.wallMillis, r.wallMillis*1000.0/r.poems, r.peakRssKB/1024.0,
+                r.peakHeapBytes/1048576.0, r.files,
+                (i>0)?String.format(Locale.ROOT,"%.2f",exp):"-") );
+            sb.append("    { \"poems\": ").append(r.poems);
+            sb.append(", \"wallMillis\": ").append(r.wallMillis);
+            sb.append(", \"peakRssKB\": ").append(r.peakRssKB);
+            sb.append(", \"peakHeapBytes\": ").append(r.peakHeapBytes);
+            sb.append(", \"filesWritten\": ").append(r.files);
+            sb.append(", \"bytesWritten\": ").append(r.bytes);
+            if ( i > 0 )
+                sb.append(", \"exponent\": ").append(
+                    String.format(Locale.ROOT,"%.3f",exp));
+            sb.append(" }");
+            if ( i < runs.size()-1 )
+                sb.append(",");
+            sb.append("\n");
+        }
+        sb.append("  ]\n}\n");
+        FileIO.write( output, sb.toString().getBytes("UTF-8") );
+        System.out.println( "Results written to "+output.getPath() );
+    }
+    /**
+     * Get the peak resident set size of this process
+     * @return the size in KB or -1 if unknown
+     */
+    static long peakRss()
+    {
+        File status = new File( "/proc/self/status" );
+        if ( status.exists() )
+        {
+            try
+            {
+                BufferedReader br = new BufferedReader( 
+                    new InputStreamReader(new FileInputStream(status)) );
+                try
+                {
+                    String line;
+                    while ( (line=br.readLine()) != null )
+                        if ( line.startsWith("VmHWM:") )
+                            return Long.parseLong( 
+                                line.substring(6).replace("kB","").trim() );
+                }
+                finally
+                {
+                    br.close();
+                }
+            }
+            catch ( Exception e )
+            {
+            }
+        }
+        return -1;
+    }
+    /**
+     * Get the sum of the peak usage of the heap pools
+     * @return the size in bytes
+     */
+    static long peakHeap()
+    {
+        long total = 0;
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for ( int i=0;i<pools.size();i++ )
+            if ( pools.get(i).getType() == MemoryType.HEAP )
+                total += pools.get(i).getPeakUsage().getUsed();
+        return total;
+    }
+    /**
+     * Run the Anthologiser in this JVM and report on it
+     * @param args its arguments
+     */
+    static void child( String[] args )
+    {
+        String[] rest = new String[args.length-1];
+        System.arraycopy( args, 1, rest, 0, rest.length );
+        long start = System.currentTimeMillis();
+        Anthologiser.main( rest );
+        long wall = System.currentTimeMillis()-start;
+        System.out.println( RESULT+" "+wall+" "+peakRss()+" "+peakHeap() );
+    }
+    public static void main( String[] args )
+    {
+        if ( args.length > 0 && args[0].equals("--child") )
+            child( args );
+        else
+        {
+            ScaleBench sb = new ScaleBench();
+            if ( sb.checkArgs(args) )
+            {
+                try
+                {
+                    ArrayList<Run> runs = new ArrayList<Run>();
+                    for ( int i=0;i<sb.sizes.size();i++ )
+                    {
+                        System.out.println( "# "+sb.sizes.get(i)+" poems" );
+                        runs.add( sb.runOne(sb.sizes.get(i)) );
+                    }
+                    sb.report( runs );
+                }
+                catch ( Exception e )
+                {
+                    e.printStackTrace( System.out );
+                }
+            }
+            else
+                usage();
+        }
+    }
+}
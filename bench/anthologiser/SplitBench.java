@@ -0,0 +1,136 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Split a source and serialise its poems, without saving them. With
+ * notes in every poem this measures the MJS note conversion as well,
+ * after checking that a note of two paragraphs becomes two notes.
+ * With more than one thread the poems are split on a pool.
+ * @author desmond
+ */
+public class SplitBench extends Bench
+{
+    /** MJS notes per poem */
+    int notes;
+    /** poems to split at once */
+    int threads;
+    ForkJoinPool pool;
+    File dir;
+    File src;
+    Counter counter;
+    /**
+     * Receives the poems and just counts their bytes
+     */
+    static class Counter extends Anthologiser
+    {
+        long bytes;
+        void addPoem( String title, File src, int rank, String hWork,
+            String hVersion, XMLWriter data )
+        {
+            bytes += data.size();
+        }
+        void setDescription( File src, String text )
+        {
+        }
+    }
+    /**
+     * Receives the poems and keeps their text
+     */
+    static class Capture extends Anthologiser
+    {
+        StringBuilder text = new StringBuilder();
+        void addPoem( String title, File src, int rank, String hWork,
+            String hVersion, XMLWriter data ) throws Exception
+        {
+            text.append( new String(data.toByteArray(),"UTF-8") );
+        }
+        void setDescription( File src, String text )
+        {
+        }
+    }
+    /** a poem with an MJS note of two paragraphs */
+    static final String NOTE_SOURCE = "<TEI><text><body>\n"
+        +"<!-- *** POEM NUMBER 0: CHECK -->\n"
+        +"<div type=\"hversion\" xml:id=\"H0a\"><div type=\"source\">"
+        +"<p>Check MS</p></div><head>Check</head>\n"
+        +"<lg><l>line</l></lg>\n<div type=\"mjsnote\"><p>first "
+        +"<hi rend=\"it\" n=\"2\">a</hi></p><p>second</p></div></div>\n"
+        +"</body></text></TEI>\n";
+    /** what each paragraph of that note must become */
+    static final String NOTE_EXPECTED = "<note resp=\"MJS\">first "
+        +"<hi n=\"2\" rend=\"it\">a</hi></note>"
+        +"<note resp=\"MJS\">second</note></div>";
+    /**
+     * @param name the benchmark's name
+     * @param poems the number of poems in the source
+     * @param notes the number of MJS notes in each poem
+     */
+    SplitBench( String name, int poems, int notes )
+    {
+        this( name, poems, notes, 1 );
+    }
+    /**
+     * @param name the benchmark's name
+     * @param poems the number of poems in the source
+     * @param notes the number of MJS notes in each poem
+     * @param threads the number of poems to split at once
+     */
+    SplitBench( String name, int poems, int notes, int threads )
+    {
+        super( name, poems );
+        this.notes = notes;
+        this.threads = threads;
+    }
+    void setup() throws Exception
+    {
+        dir = BenchData.scratchDir( "split" );
+        src = new File( dir, "BENCH.xml" );
+        String xml = new BenchData().source( param, 12, notes );
+        FileIO.write( src, xml.getBytes("UTF-8") );
+        counter = new Counter();
+        if ( notes > 0 )
+            checkNotes();
+        if ( threads > 1 )
+            pool = new ForkJoinPool( threads );
+    }
+    /**
+     * Check that every paragraph of an MJS note becomes a note of its
+     * own, with the attributes inside it in name order
+     * @throws Exception if the conversion is wrong
+     */
+    void checkNotes() throws Exception
+    {
+        File check = new File( dir, "CHECK.xml" );
+        FileIO.write( check, NOTE_SOURCE.getBytes("UTF-8") );
+        Capture capture = new Capture();
+        new PoemSplitter( capture, check, 0, null ).split();
+        if ( capture.text.indexOf(NOTE_EXPECTED) == -1 )
+            throw new Exception("MJS note converted wrongly: "+capture.text);
+    }
+    Object run() throws Exception
+    {
+        counter.bytes = 0;
+        new PoemSplitter( counter, src, 0, pool ).split();
+        return counter.bytes;
+    }
+    void tearDown() throws Exception
+    {
+        if ( pool != null )
+            pool.shutdownNow();
+        Utils.removeDir( dir );
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+
+/**
+ * Title-case a batch of upper-case titles, either afresh each time or
+ * through the cache, where after warmup every title is a hit
+ * @author desmond
+ */
+public class TitleBench extends Bench
+{
+    String[] titles;
+    boolean cached;
+    /**
+     * @param n the number of titles per operation
+     * @param cached true to go through the cache of cased titles
+     */
+    TitleBench( int n, boolean cached )
+    {
+        super( cached?"titeliser.getTitle":"titeliser.caseTitle", n );
+        this.cached = cached;
+    }
+    void setup() throws Exception
+    {
+        BenchData data = new BenchData();
+        titles = new String[param];
+        for ( int i=0;i<titles.length;i++ )
+            titles[i] = data.title( 2+i%6 );
+    }
+    Object run() throws Exception
+    {
+        int total = 0;
+        for ( int i=0;i<titles.length;i++ )
+        {
+            String t = cached ? Titeliser.getTitle( titles[i] )
+                : Titeliser.caseTitle( titles[i] );
+            total += t.length();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Name buckets from the first and last keys in each, for every pair of
+ * neighbouring keys in sorted order.
+ * @author desmond
+ */
+public class UniquePrefixBench extends Bench
+{
+    File dir;
+    FileMap poems;
+    String[] keys;
+    /**
+     * @param keys the number of keys
+     */
+    UniquePrefixBench( int keys )
+    {
+        super( "fileMap.uniquePrefix", keys );
+    }
+    void setup() throws Exception
+    {
+        dir = BenchData.scratchDir( "prefix" );
+        String tmp = System.getProperty( "java.io.tmpdir" );
+        System.setProperty( "java.io.tmpdir", dir.getPath() );
+        try
+        {
+            poems = new FileMap( dir );
+        }
+        finally
+        {
+            System.setProperty( "java.io.tmpdir", tmp );
+        }
+        keys = new BenchData().keys( param );
+        Arrays.sort( keys );
+    }
+    Object run() throws Exception
+    {
+        String prev = null;
+        int total = 0;
+        for ( int i=1;i<keys.length;i++ )
+        {
+            String leading = poems.uniquePrefix( keys[i-1], keys[i], prev );
+            prev = poems.uniquePrefix( keys[i], keys[i-1], null );
+            total += leading.length()+prev.length();
+        }
+        return total;
+    }
+    void tearDown() throws Exception
+    {
+        Utils.removeDir( dir );
+    }
+}
@@ -0,0 +1,13 @@
+#!/bin/bash
+# Compile the application and the benchmarks, then run the benchmarks.
+# Arguments are passed on, e.g. ./bench/run-bench.sh -o out.json split
+# The library jars default to those in nbproject/project.properties.
+DIR=$(cd "$(dirname "$0")/.." && pwd)
+CALLIOPE_JAR=${CALLIOPE_JAR:-/home/desmond/NetBeansProjects/calliope/dist/calliope.jar}
+HTMLPARSER_JAR=${HTMLPARSER_JAR:-/home/desmond/NetBeansProjects/calliope/lib/htmlparser.jar}
+LIBS=$CALLIOPE_JAR:$HTMLPARSER_JAR
+OUT=$DIR/build/bench
+rm -rf $OUT
+mkdir -p $OUT
+javac -nowarn -cp $LIBS -d $OUT $(find $DIR/src $DIR/bench -name "*.java") || exit 1
+java -Xms512m -Xmx512m -cp $OUT:$LIBS anthologiser.Benchmarks "$@"
@@ -0,0 +1,14 @@
+#!/bin/bash
+# Compile the application and the benchmarks, then run the end-to-end 
+# scaling benchmark. Arguments are passed on, e.g.
+#   ./bench/run-scaling.sh -z 1000,10000 -t 4 -o scaling.json
+# The library jars default to those in nbproject/project.properties.
+DIR=$(cd "$(dirname "$0")/.." && pwd)
+CALLIOPE_JAR=${CALLIOPE_JAR:-/home/desmond/NetBeansProjects/calliope/dist/calliope.jar}
+HTMLPARSER_JAR=${HTMLPARSER_JAR:-/home/desmond/NetBeansProjects/calliope/lib/htmlparser.jar}
+LIBS=$CALLIOPE_JAR:$HTMLPARSER_JAR
+OUT=$DIR/build/bench
+rm -rf $OUT
+mkdir -p $OUT
+javac -nowarn -cp $LIBS -d $OUT $(find $DIR/src $DIR/bench -name "*.java") || exit 1
+java -cp $OUT:$LIBS anthologiser.ScaleBench "$@"
@@ -1,30 +1,11 @@
 #!/bin/bash
+MSS=/home/desmond/Documents/harpur/mss
 # newspapers
+SOURCES="$MSS/AC.xml $MSS/AHC.xml $MSS/ATLAS.xml $MSS/AUS.xml $MSS/BD.xml $MSS/CL.xml"
+SOURCES="$SOURCES $MSS/CLJ.xml $MSS/EMPIRE.xml $MSS/MM.xml $MSS/PA.xml $MSS/SCHRON.xml $MSS/STJ.xml"
+# true MSS
+SOURCES="$SOURCES $MSS/A87-1.xml $MSS/A88.xml $MSS/A89.xml $MSS/A90.xml $MSS/A91.xml $MSS/A92.xml"
+SOURCES="$SOURCES $MSS/A93.xml $MSS/C380.xml $MSS/A95.xml $MSS/C384.xml $MSS/A97.xml $MSS/B78.xml $MSS/C376.xml"
 rm -rf _harpur/+english
 rm -rf _harpur/@misc
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/AC.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/AHC.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/ATLAS.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/AUS.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/BD.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/CL.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/CLJ.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/EMPIRE.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/MM.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/PA.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/SCHRON.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/STJ.xml
-# true MSS
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A87-1.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A88.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A89.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A90.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A91.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A92.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A93.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/C380.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A95.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/C384.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/A97.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/B78.xml
-java -jar dist/Anthologiser.jar -j -w /home/desmond/Documents/harpur/mss/works.csv -f _harpur/+english/harpur/ -l english/harpur/ /home/desmond/Documents/harpur/mss/C376.xml
+java -jar dist/Anthologiser.jar -j -w $MSS/works.csv -f _harpur/+english/harpur/ -l english/harpur/ $SOURCES
@@ -15,22 +15,21 @@
  */
 package anthologiser;
 import java.io.File;
-import java.io.FileReader;
-import java.io.OutputStream;
-import java.io.FileOutputStream;
-import java.io.ByteArrayOutputStream;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import java.io.StringReader;
 import java.io.FileInputStream;
-import org.xml.sax.InputSource;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.ArrayList;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 //import javax.xml.transform.Transformer;
 //import javax.xml.transform.TransformerFactory;
 //import javax.xml.transform.dom.DOMSource;
@@ -69,8 +68,8 @@ public class Anthologiser
     static String MISC_FOLDER = "@misc";
     /** keys for config file */
     static int MAX_POEMS_PER_FOLDER = 15;
-    /** the source anthology file */
-    File src;
+    /** all the source anthology files to process in this run */
+    ArrayList<File> sources;
     /** updatable record of groups and versions */
     VersionsDocument versions;
     /** collection of links and title */
@@ -89,12 +88,49 @@ public class Anthologiser
     FileMap poems;
 //    /** configuration settings */
 //    Config config;
-    HashMap<String,String> works;
+    /** titles of works by hWork, or null if there is no works table */
+    WorksIndex works;
     /** if true join the various anthologies into an index */
     boolean join;
     /** true if using subfolders starting with space */
     boolean useSubFolders;
+    /** true if works go in shards chosen by the hash of their keys */
+    boolean useShards;
+    /** levels of shards in use, or 0 */
+    int shardDepth;
+    /** number of sources to parse and split at once */
+    int threads;
+    /** number of works to save at once */
+    int saveThreads;
+    /** number of poems to split at once within one source */
+    int poemThreads;
+    /** pool splitting the poems of a source, if poemThreads > 1 */
+    ForkJoinPool poemPool;
+    /** most versions waiting to be written behind the split, 0 for none */
+    int writeQueue;
+    /** writes started while splitting, or null */
+    WriteBehind writeBehind;
+    /** the works table file or null */
+    File worksFile;
+    /** hex SHA-1 of the works table, once it is loaded */
+    String worksHash;
+    /** the config file or null; its content is hashed into hashInputs */
+    File configFile;
+    /** if true split every source even if unchanged since the last run */
+    boolean rebuildAll;
+    /** record of what the last run was built from */
+    BuildManifest manifest;
+    /** timings and counters for each phase of the run */
+    Metrics metrics;
+    /** where to write the metrics as JSON or null */
+    File metricsFile;
+    /** if true store each distinct version once and link works to it */
+    boolean useBlobs;
     static final String DEFAULT_MAIN_FOLDER = "poems";
+    /** the blob store's folder within the top-level folder */
+    static final String BLOB_DIR = "@blobs";
+    /** the compiled works table within the top-level folder */
+    static final String WORKS_INDEX = "works.idx";
     static final String ARCHIVE_STR = 
         "{\n    \"base_url\": \"http://localhost:8080/\"\n}\n";
     /** 
@@ -105,7 +141,11 @@ public class Anthologiser
         linkBase = "/";
         archive = ARCHIVE_STR;
         anthologies = new HashMap<String,Anthology>();
-        works = new HashMap<String,String>(800);
+        sources = new ArrayList<File>();
+        threads = 1;
+        saveThreads = 1;
+        poemThreads = 1;
+        metrics = new Metrics();
     }
     /**
      * Tell the user how to use this application
@@ -113,39 +153,102 @@ public class Anthologiser
     private static void usage()
     {
         System.out.println( "usage: java -jar Anthologiser.jar "
-            +"[-f folder] [-l link-base] [-c config] [-w works] file" );
+            +"[-f folder] [-l link-base] [-c config] [-w works] "
+            +"[-m manifest] [-t threads] [-p poem-threads] [-o save-threads] "
+            +"[-q write-queue] [-y none|end|file] [-b budget-MB] [-s|-h] "
+            +"[-r] [-u] [-a] "
+            +"[--metrics out.json] file..." );
     }
     /**
-     * Read an optional h-numbers file, identifiers for works
-     * @param file
+     * Note an optional h-numbers file, identifiers for works. It is 
+     * compiled or mapped by loadWorks once the output folder is known.
+     * @param file the works table: hWork TAB title per line
      * @throws Exception 
      */
     private void readWorks( String file ) throws Exception
     {
+        File f = new File( file );
+        if ( f.exists() )
+            worksFile = f;
+    }
+    /**
+     * Map the compiled works table, compiling it if the CSV has changed
+     * since it was last compiled
+     * @throws Exception 
+     */
+    private void loadWorks() throws Exception
+    {
+        if ( worksFile != null )
+        {
+            try
+            {
+                byte[] digest = Utils.digestFile( worksFile );
+                worksHash = Utils.toHex( digest );
+                works = WorksIndex.open( worksFile, 
+                    new File(topLevelFolder,WORKS_INDEX), digest );
+            }
+            catch ( Exception e )
+            {
+                throw new Exception( "failed to read file "
+                    +worksFile.getPath(), e );
+            }
+        }
+    }
+    /**
+     * Read a manifest of source files, one per line. Blank lines and lines 
+     * starting with "#" are ignored. Relative paths are resolved against 
+     * the manifest's own directory.
+     * @param file the manifest file
+     * @return true if all the listed files were usable
+     * @throws Exception 
+     */
+    private boolean readManifest( String file ) throws Exception
+    {
+        boolean sane = true;
+        File f = new File( file );
+        if ( !f.isFile() )
+        {
+            System.out.println( file+" is not a file" );
+            return false;
+        }
+        BufferedReader br = new BufferedReader( new InputStreamReader( 
+            new FileInputStream(f), "UTF-8") );
         try
         {
-            File f = new File( file );
-            if ( f.exists() )
+            String line;
+            while ( (line=br.readLine()) != null )
             {
-                int len = (int)f.length();
-                char[] buf = new char[len];
-                FileReader fr = new FileReader( f );
-                fr.read( buf );
-                String text = new String( buf );
-                String[] lines = text.split("\n");
-                for ( int i=0;i<lines.length;i++ )
+                line = line.trim();
+                if ( line.length()>0 && !line.startsWith("#") )
                 {
-                    String[] parts = lines[i].split("\t");
-                    if ( parts.length>=2 && parts[0].length()>0 
-                        && parts[1].length()>0 )
-                        works.put( parts[0], parts[1] );
+                    File s = new File( line );
+                    if ( !s.isAbsolute() )
+                        s = new File( f.getAbsoluteFile().getParentFile(), line );
+                    sane = addSource( s ) && sane;
                 }
             }
         }
-        catch ( Exception e )
+        finally
         {
-            throw new Exception( "failed to read file "+file );
+            br.close();
         }
+        return sane;
+    }
+    /**
+     * Add a source file to the list of those to process
+     * @param file the source XML file
+     * @return true if it was a usable XML file
+     */
+    private boolean addSource( File file )
+    {
+        if ( !file.isFile() || !file.getName().endsWith(".xml") )
+        {
+            System.out.println( file.getName()+" is not a file or not XML" );
+            return false;
+        }
+        else if ( !sources.contains(file) )
+            sources.add( file );
+        return true;
     }
     /**
      * Check the commandline arguments for sanity
@@ -158,7 +261,7 @@ public class Anthologiser
         if ( args.length >= 1 )
         {
 //            File configFile = null;
-            for ( int i=0;i<args.length-2;i++ )
+            for ( int i=0;i<args.length;i++ )
             {
                 if ( args[i].length()==2&&args[i].charAt(0)=='-' )
                 {
@@ -168,23 +271,47 @@ public class Anthologiser
                             join = true;
                             break;
                         case 'l':   // link
-                            if ( args.length < i+3 )
+                            if ( args.length < i+2 )
                                 sane = false;
                             else
-                                linkBase = args[i+1];
+                                linkBase = args[++i];
                             break;
                         case 'w':    // h-numbers CSV (tab-delimited) file
-                            readWorks( args[i+1] );
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                                readWorks( args[++i] );
+                            break;
+                        case 'c':   // config file, only hashed to detect rebuilds
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                                configFile = new File( args[++i] );
+                            break;
+                        case 'r':   // rebuild even unchanged sources
+                            rebuildAll = true;
+                            break;
+                        case 'u':   // only write files that have changed
+                            FileIO.skipUnchanged = true;
+                            break;
+                        case 'a':   // link versions to shared blobs
+                            useBlobs = true;
+                            break;
+                        case 'm':   // manifest of source files
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                                sane = readManifest( args[++i] ) && sane;
                             break;
                         case 'f':   // folder
-                            if ( args.length < i+3 )
+                            if ( args.length < i+2 )
                                 sane = false;
                             else
                             {
-                                folder = new File(args[i+1]);
+                                folder = new File(args[++i]);
                                 if ( !folder.exists() )
                                     folder.mkdirs();
-                                String[] parts = args[i+1].split("/");
+                                String[] parts = args[i].split("/");
                                 if ( parts.length > 0 )
                                     topLevelFolder = new File(parts[0]);
                             }
@@ -192,19 +319,91 @@ public class Anthologiser
                         case 's':   // use sub folders
                             useSubFolders = true;
                             break;
+                        case 'h':   // use stable hashed sub folders
+                            useShards = true;
+                            break;
+                        case 't':   // number of sources to split at once
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                            {
+                                threads = Integer.parseInt( args[++i] );
+                                if ( threads < 1 )
+                                    sane = false;
+                            }
+                            break;
+                        case 'p':   // number of poems to split at once
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                            {
+                                poemThreads = Integer.parseInt( args[++i] );
+                                if ( poemThreads < 1 )
+                                    sane = false;
+                            }
+                            break;
+                        case 'q':   // versions to write behind the split
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                            {
+                                writeQueue = Integer.parseInt( args[++i] );
+                                if ( writeQueue < 0 )
+                                    sane = false;
+                            }
+                            break;
+                        case 'y':   // when to force written files to disk
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                            {
+                                try
+                                {
+                                    FileIO.durability = Durability.valueOf(
+                                        args[++i].toUpperCase() );
+                                }
+                                catch ( IllegalArgumentException e )
+                                {
+                                    sane = false;
+                                }
+                            }
+                            break;
+                        case 'o':   // number of works to save at once
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                            {
+                                saveThreads = Integer.parseInt( args[++i] );
+                                if ( saveThreads < 1 )
+                                    sane = false;
+                            }
+                            break;
+                        case 'b':   // heap for file content, in megabytes
+                            if ( args.length < i+2 )
+                                sane = false;
+                            else
+                            {
+                                long mb = Long.parseLong( args[++i] );
+                                if ( mb < 0 )
+                                    sane = false;
+                                else
+                                    PayloadStore.setBudget( mb*1024*1024 );
+                            }
+                            break;
                     }
                 }
+                else if ( args[i].equals("--metrics") )
+                {
+                    if ( args.length < i+2 )
+                        sane = false;
+                    else
+                        metricsFile = new File( args[++i] );
+                }
+                else
+                    sane = addSource( new File(args[i]) ) && sane;
             }
-            if ( topLevelFolder == null )
-                topLevelFolder = folder;
-            File file = new File( args[args.length-1] );
-            if ( !file.isFile() || !file.getName().endsWith(".xml") )
-            {
-                System.out.println( file.getName()+" is not a file or not XML" );
+            if ( sources.isEmpty() )
                 sane = false;
-            }
-            else
-                src = file;
             // ensure default folder is created/specified
             if ( folder == null )
             {
@@ -212,6 +411,8 @@ public class Anthologiser
                 if ( !folder.exists() )
                     folder.mkdir();
             }
+            if ( topLevelFolder == null )
+                topLevelFolder = folder;
             // ensure anthologies folder exists
             miscDir = new File( topLevelFolder, MISC_FOLDER );
             // normalise linkBase
@@ -224,81 +425,58 @@ public class Anthologiser
         }
         return sane;
     }
-    /**
-     * Look one level down for a div element with a description
-     * @param elem the top-level element to start from
-     * @return the description or more often null
-     */
-    String extractDescription( Node elem )
-    {
-        String desc = null;
-        Node child = elem.getFirstChild();
-        while ( child != null )
-        {
-            if ( child.getNodeType()==Node.ELEMENT_NODE )
-            {
-                Element e = (Element) child;
-                if ( e.getNodeName().equals("div") 
-                    && e.hasAttribute("type")
-                    &&e.getAttribute("type").equals("source") )
-                {
-                    String text = child.getTextContent();
-                    if ( text != null )
-                    {
-                        desc = text;
-                        int index = desc.lastIndexOf(",");
-                        if ( index != -1 )
-                            desc = desc.substring( 0, index );
-                        desc = desc.trim();
-                        break;
-                    }
-                }
-            }
-            child = child.getNextSibling();
-        }
-        return desc;
-    }
-    /**
-     * Convert an element and all its content to a byte array
-     * @param root the root element
-     * @return a byte array
-     */
-    byte[] toBytes( Element root ) throws Exception
-    {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        printOne( bos, root );
-        return bos.toByteArray();
-    }
     /**
      * Add a poem to the poems hashmap. There may be several poems of the 
-     * same name
+     * same name. Safe to call from several sources at once: each work key 
+     * is guarded by its own lock stripe.
      * @param title the normalised name or title of the poem
-     * @param file the name for the file
+     * @param src the source file the poem came from
+     * @param rank the source's position in the run, lowest names new works
      * @param hWork the key for the work name in works
      * @param hVersion the individual version ID
-     * @param root the document's root element
+     * @param data the poem's TEI content, written out before we return
      */
-    void addPoem( String title, String file, String hWork, String hVersion, 
-            Element root ) throws Exception
+    void addPoem( String title, File src, int rank, String hWork, 
+        String hVersion, XMLWriter data ) throws Exception
     {
         String key = "%"+hWork.toLowerCase();
-        MultiFormatDir mfd;
-        if ( poems.containsKey(key) )
-        {
-            mfd = poems.get( key );
-            mfd.setSrcName(simpleName(src.getName()));
-        }
-        else
-        {
-            File mfdDir = new File( poems.getTempDir(), "%"+key );
-            mfd = new MultiFormatDir( mfdDir, simpleName(src.getName()));
-            title = Titeliser.getTitle( title );
-            mfd.addConfigPair( JSONKeys.TITLE, title );
-            poems.put( key, mfd );
-        }
+        String file = src.getName();
         String fname = Utils.fileName( file );
         String suffix = Utils.fileSuffix( file );
-        mfd.add( toBytes(root), "", fname, hVersion.toLowerCase(), suffix );
+        String listed = ( works != null ) ? works.get( hWork ) : null;
+        if ( listed != null )
+            title = listed;
+        manifest.addVersion( simpleName(file), key, 
+            fname+"#"+hVersion.toLowerCase()+suffix );
+        Metrics.version();
+        synchronized ( poems.lockFor(key) )
+        {
+            MultiFormatDir mfd = poems.get( key );
+            if ( mfd != null )
+            {
+                mfd.addSrcName(simpleName(file));
+                // a source earlier in the run would have named it first
+                if ( rank < mfd.getTitleRank() )
+                    mfd.setTitle( Titeliser.getTitle(title), rank );
+            }
+            else
+            {
+                mfd = poems.revive( key );
+                if ( mfd != null )
+                    mfd.addSrcName( simpleName(file) );
+                else
+                {
+                    File mfdDir = new File( poems.getTempDir(), "%"+key );
+                    mfd = new MultiFormatDir( mfdDir, simpleName(file));
+                    poems.put( key, mfd );
+                }
+                mfd.setTitle( Titeliser.getTitle(title), rank );
+            }
+            mfd.add( data, "", fname, hVersion.toLowerCase(), suffix );
+            if ( writeBehind != null )
+                mfd.writeAhead( FileMap.fixedFolder(folder,key,shardDepth), 
+                    key, writeBehind );
+        }
     }
     private static int push( StringBuilder sb, char token, int state )
     {
@@ -386,86 +564,28 @@ public class Anthologiser
 //            sb.append( saved.toString());
 //        return sb.toString();
 //    }
-    private String hGetWork( String hVersion )
-    {
-        if ( hVersion.length() > 1 )
-        {
-            StringBuilder sb = new StringBuilder(hVersion);
-            char token = sb.charAt(sb.length()-1);
-            while ( sb.length()> 1 && Character.isLowerCase(token) )
-            {
-                sb.setLength(sb.length()-1);
-                token = sb.charAt(sb.length()-1);
-            }
-            return sb.toString();
-        }
-        else
-            return hVersion;
-    }
     /**
-     * Merge all the anthologies into a single file
+     * Update the anthology registry with this run's anthologies and write
+     * the index of all of them. The anthology files were already written
+     * without their descriptions by externalise.
      */
     void joinAnthologies() throws Exception
     {
-        Set<String> keys = anthologies.keySet();
-        Iterator<String> iter = keys.iterator();
-        String key1 = iter.next();
-        if ( key1 != null )
+        Iterator<Anthology> iter = anthologies.values().iterator();
+        if ( iter.hasNext() )
         {
-            Anthology anth = anthologies.get(key1);
-            File anthologiesDir = anth.getAnthologiesDir();
-            File dst = new File( anthologiesDir, "index" );
-            StringBuilder sb = new StringBuilder();
-            if ( !dst.exists() )
-            {
-                dst.createNewFile();
-                sb.append("<div id=\"anthologyIndex\" class=\"listContainer\">\n"
-                    +"<ul class=\"expList\"></ul></div>");
-            }
-            else
+            File anthologiesDir = iter.next().getAnthologiesDir();
+            AnthologyRegistry registry = new AnthologyRegistry( 
+                anthologiesDir );
+            iter = anthologies.values().iterator();
+            while ( iter.hasNext() )
             {
-                FileInputStream fis = new FileInputStream(dst);
-                byte[] data = new byte[(int)dst.length()];
-                fis.read(data);
-                sb.append(new String(data,"UTF-8"));
-                fis.close();
-            }
-            File[] files = anthologiesDir.listFiles();
-            for ( int i=0;i<files.length;i++ )
-            {
-                FileInputStream fis = new FileInputStream(files[i]);
-                byte[] data = new byte[(int)files[i].length()];
-                fis.read( data );
-                fis.close();
-                // keep old files
-                String contents = new String(data,"UTF-8");
-                int ulPos = contents.indexOf("<ul>");
-                if ( ulPos > 4 && contents.endsWith("</li>") 
-                    && contents.startsWith("<li>") )
-                {
-                    StringBuilder li = new StringBuilder();
-                    li.append("<li><a href=\"");
-                    String url = MISC_URL+files[i].getName().toLowerCase();
-                    li.append(url);
-                    li.append("\">");
-                    String description = contents.substring(4,ulPos);
-                    li.append( description );
-                    li.append("</a></li>\n");
-                    int ulEnd = sb.lastIndexOf("</ul>");
-                    if ( ulEnd != -1 )
-                        sb.insert( ulEnd, li.toString());
-                    // write out the truncated contents
-                    files[i].delete();
-                    files[i].createNewFile();
-                    FileOutputStream fos2 = new FileOutputStream(files[i]);
-                    String part = contents.substring(ulPos,contents.length()-5);
-                    fos2.write( part.getBytes("UTF-8") );
-                    fos2.close();
-                }
+                Anthology anth = iter.next();
+                registry.register( anth.name, String.valueOf(anth.description),
+                    MISC_URL+anth.name.toLowerCase() );
             }
-            FileOutputStream fos = new FileOutputStream(dst);
-            fos.write( sb.toString().getBytes("UTF-8") );
-            fos.close();
+            registry.writeIndex();
+            registry.externalise();
             // write config - required by Calliope!!
             File conf = new File(anthologiesDir,"config.conf");
             boolean res = true;
@@ -473,330 +593,295 @@ public class Anthologiser
                 res = conf.createNewFile();
             if ( !res )
                 throw new Exception("failed to create conf file");
-            sb = new StringBuilder();
+            StringBuilder sb = new StringBuilder();
             sb.append("{ \"format\": \"TEXT/HTML\" }");
-            fos = new FileOutputStream( conf );
-            fos.write( sb.toString().getBytes() );
-            fos.close();
+            FileIO.write( conf, sb.toString().getBytes() );
         }
     }
-    /**
-     * Normalise a poem's name by removing unwanted junk and equating
-     * names for the same poem using the config file
-     * @param raw the raw poem name from the src
-     * @return a normalised poem name or the empty string if not a poem
-     */
-    private String normaliseName( String raw )
-    {
-        return raw.replaceAll(":|\\?|\"","");
-    }
-    /**
-     * Split the document rooted at elem into individual poems prefixed 
-     * by comments starting with "***"
-     * @param doc the parent document
-     * @param elem the element below which poems exist
+    /** 
+     * simplify the source file name by removing the extension
+     * @param fileName the name to simplify
+     * @return the shortened name
      */
-    private void split( Document doc, Element elem ) throws Exception
+    private String simpleName( String fileName )
     {
-        Node child = elem.getFirstChild();
-        // the TEI element of each poem
-        Element tei = null;
-        // the text node of each XML poem
-        Element text = null;
-        String title = null;
-        String hVersion = null;
-        String hWork = null;
-        while ( child != null )
-        {
-            if ( child.getNodeType()==Node.COMMENT_NODE 
-                && child.getTextContent().trim().startsWith("***") )
-            {
-                if ( tei != null&&title!=null&&hWork !=null&&hVersion!=null )
-                {
-                    String srcName = src.getName();
-                    if ( hWork != null && works.containsKey(hWork) )
-                        title = works.get( hWork );
-                    addPoem(title,srcName,hWork,hVersion,tei);  
-                    hVersion = hWork = null;
-                }
-                tei = doc.createElement("TEI");
-                Element body = doc.createElement("body");
-                tei.appendChild( body );
-                text = doc.createElement("text");
-                body.appendChild( text );
-                String content = child.getTextContent().substring(4).trim();
-                content = content.replace("/","_");
-                title = normaliseName( content );
-            }
-            else if ( text != null )
-            {
-                Node clone = child.cloneNode(true);
-                if ( clone.getNodeType()==Node.ELEMENT_NODE )
-                {
-                    if ( clone.getNodeName().equals("div") )
-                    {
-                        String type = ((Element)clone).getAttribute("type");
-                        String attr = ((Element)clone).getAttribute("xml:id");
-                        if ( type != null && type.toLowerCase().equals("hversion") 
-                                && attr != null && attr.startsWith("H") )
-                        {
-                            hVersion = attr;
-                            hWork = hGetWork( hVersion );
-                        }
-                        String desc = extractDescription( clone );
-                        if ( desc != null )
-                        {
-                            String sName = simpleName(src.getName());
-                            Anthology anth = anthologies.get(sName);
-                            if ( anth != null )
-                            {
-                                if ( !anth.descriptionSet() )
-                                    anth.setDescription( desc );
-                                if ( !anth.titleSet() )
-                                    anth.setTitle( sName );
-                                if ( !versions.containsKey(sName) )
-                                    versions.addVersion( sName, desc );
-                            }
-                        }
-                    }
-                }
-                text.appendChild( clone );
-            }
-            else if ( child.getNodeType()==Node.ELEMENT_NODE )
-            {
-                Element e = (Element) child;
-                String name = e.getNodeName();
-                if ( name.equals("body")||name.equals("text") )
-                {
-                    child = e.getFirstChild();
-                    continue;
-                }
-            }
-            child = child.getNextSibling();
-        }
-        if ( tei != null&&title!=null )
-        {
-            String srcName = src.getName();
-            if ( hWork != null && works.containsKey(hWork) )
-                title = works.get( hWork );
-            addPoem(title,srcName,hWork,hVersion,tei);  
-        }
+        String fName = fileName;
+        int index = fileName.lastIndexOf(".");
+        if ( index != -1 )
+            fName = fileName.substring(0,index);
+        return fName;
     }
     /**
-     * Write an element and its children to disk as an XML document
-     * @param fos the file output stream to write to
-     * @param elem the element to print
+     * Split one source file into the shared poem map
+     * @param src the source file
+     * @param rank the source's position in the run
      */
-    void printElementBody( OutputStream fos, Element elem )
-        throws Exception
+    void parseSource( File src, int rank ) throws Exception
     {
-
-        // recurse into its children
-        Node child = elem.getFirstChild();
-        while ( child != null )
-        {
-            printOne( fos, child );
-            child = child.getNextSibling();
-        }
+        PoemSplitter splitter = new PoemSplitter( this, src, rank, poemPool );
+        splitter.split();
     }
     /**
-     * Print an element's end-code
-     * @param fos the stream to write to
-     * @param elem the element in question
+     * Record the description of a source found while splitting it
+     * @param src the source file
+     * @param text the text content of a div of type "source"
      */
-    void printElementEnd( OutputStream fos, Element elem )
-        throws Exception
+    void setDescription( File src, String text )
     {
-        if ( elem.getFirstChild()!=null )
+        String desc = text;
+        int index = desc.lastIndexOf(",");
+        if ( index != -1 )
+            desc = desc.substring( 0, index );
+        desc = desc.trim();
+        String sName = simpleName(src.getName());
+        Anthology anth = anthologies.get(sName);
+        if ( anth != null )
         {
-            fos.write( '<' );
-            fos.write('/');
-            fos.write(elem.getNodeName().getBytes("UTF-8") );
-            fos.write( '>' );
+            if ( !anth.descriptionSet() )
+                anth.setDescription( desc );
+            if ( !anth.titleSet() )
+                anth.setTitle( sName );
+            if ( !versions.containsKey(sName) )
+                versions.addVersion( sName, desc );
         }
     }
     /**
-     * Print a single element node
-     * @param fos the stream to write to
-     * @param elem the element in question
+     * Split sources on a pool of worker threads, biggest first so that 
+     * one large manuscript doesn't start last and hold up the rest.
+     * The merged poem map is the same as for a sequential run.
+     * @param todo the sources to split, in run order
      */
-    void printElementStart( OutputStream fos, Element elem ) 
-        throws Exception
+    void parseSources( final ArrayList<File> todo ) throws Exception
     {
-        fos.write('<');
-        fos.write( elem.getNodeName().getBytes("UTF-8") );
-        NamedNodeMap attrs = elem.getAttributes();
-        for ( int j=0;j<attrs.getLength();j++ )
+        if ( threads == 1 || todo.size() <= 1 )
         {
-            Node attr = attrs.item( j );
-            fos.write( ' ' );
-            fos.write( attr.getNodeName().getBytes("UTF-8") );
-            fos.write( "=\"".getBytes() );
-            fos.write( attr.getNodeValue().getBytes("UTF-8") );
-            fos.write( '"' );
-        }
-        if ( elem.getFirstChild()==null )
-        {
-            fos.write('/');
-            fos.write('>');
+            for ( int i=0;i<todo.size();i++ )
+                parseSource( todo.get(i), sources.indexOf(todo.get(i)) );
         }
         else
-            fos.write('>');
-    }
-    /**
-     * Write all the versions to the string builders in the map
-     * @param fos the data stream to write to
-     * @param node the node to write out
-     */
-    void printOne( OutputStream fos, Node node ) throws Exception
-    {
-        if ( node.getNodeType()==Node.TEXT_NODE )
-        {
-            String content = node.getTextContent();
-            content = content.replace( "&","&amp;" );
-            fos.write( content.getBytes("UTF-8") );
-        }
-        else if ( node.getNodeType()==Node.ELEMENT_NODE )
-        {
-            printElementStart( fos, (Element)node );
-            printElementBody( fos, (Element)node );
-            printElementEnd( fos, (Element)node );
-        }
-        else if ( node.getNodeType()==Node.COMMENT_NODE )
         {
-            fos.write("<!--".getBytes("UTF-8") );
-            fos.write(node.getTextContent().getBytes("UTF-8") );
-            fos.write("-->".getBytes("UTF-8") );
+            Integer[] byLength = new Integer[todo.size()];
+            for ( int i=0;i<byLength.length;i++ )
+                byLength[i] = sources.indexOf( todo.get(i) );
+            Arrays.sort( byLength, new Comparator<Integer>() {
+                public int compare( Integer a, Integer b )
+                {
+                    long lenA = sources.get(a).length();
+                    long lenB = sources.get(b).length();
+                    return (lenA<lenB)?1:(lenA>lenB)?-1:a.compareTo(b);
+                }
+            });
+            ExecutorService pool = Executors.newFixedThreadPool( 
+                Math.min(threads,todo.size()) );
+            try
+            {
+                ArrayList<Future<Object>> results 
+                    = new ArrayList<Future<Object>>();
+                for ( int i=0;i<byLength.length;i++ )
+                {
+                    final int rank = byLength[i];
+                    results.add( pool.submit(new Callable<Object>() {
+                        public Object call() throws Exception
+                        {
+                            parseSource( sources.get(rank), rank );
+                            return null;
+                        }
+                    }) );
+                }
+                for ( int i=0;i<results.size();i++ )
+                {
+                    try
+                    {
+                        results.get(i).get();
+                    }
+                    catch ( ExecutionException e )
+                    {
+                        if ( e.getCause() instanceof Exception )
+                            throw (Exception)e.getCause();
+                        else
+                            throw e;
+                    }
+                }
+            }
+            finally
+            {
+                pool.shutdownNow();
+            }
         }
     }
-    /** 
-     * simplify the source file name by removing the extension
-     * @param fileName the name to simplify
-     * @return the shortened name
+    /**
+     * Hash everything besides the sources themselves that affects the 
+     * output: the works table, the config file and the settings
+     * @return a hash string
      */
-    private String simpleName( String fileName )
+    String hashInputs() throws Exception
     {
-        String fName = fileName;
-        int index = fileName.lastIndexOf(".");
-        if ( index != -1 )
-            fName = fileName.substring(0,index);
-        return fName;
+        StringBuilder sb = new StringBuilder();
+        sb.append( (worksHash==null)?"":worksHash );
+        sb.append( ";" );
+        sb.append( (configFile==null)?"":Utils.hashFile(configFile) );
+        sb.append( ";" );
+        sb.append( folder.getPath() );
+        sb.append( ";" );
+        sb.append( linkBase );
+        sb.append( ";" );
+        sb.append( useSubFolders );
+        if ( shardDepth > 0 )
+            sb.append( ";" ).append( shardDepth );
+        return Utils.hashString( sb.toString() );
     }
     /**
-     * Append one element's children to another
-     * @param elem the element to add the children to
-     * @param parent the parent who will lose custody
+     * Choose how many levels of shards to use. The depth is kept from 
+     * run to run so that works stay put, and only grows, when the works 
+     * already saved would overfill the shards. Since the depth is one of 
+     * the inputs, growing it resplits every source and so relinks every 
+     * anthology.
      */
-    void appendChildren( Element elem, Element parent )
+    void chooseShardDepth()
     {
-        Node child = parent.getFirstChild();
-        while ( child != null )
+        if ( useShards )
         {
-            elem.appendChild( child.cloneNode(true) );
-            child = child.getNextSibling();
+            int depth = Math.max( 1, manifest.getShards() );
+            long capacity = MAX_POEMS_PER_FOLDER;
+            for ( int i=0;i<depth;i++ )
+                capacity *= FileMap.SHARD_FANOUT;
+            while ( poems.size() > capacity )
+            {
+                capacity *= FileMap.SHARD_FANOUT;
+                depth++;
+            }
+            shardDepth = depth;
         }
+        manifest.setShards( shardDepth );
     }
     /**
-     * Search for MJSNotes and convert them to standard notes
-     * @param elem the element to start from
+     * Work out which sources need splitting. A source can be skipped if 
+     * its content and the inputs are the same as last time and what it 
+     * produced is still there. Changed sources lose the versions they 
+     * produced last time, so that deleted poems don't linger.
+     * @return the sources to split, in run order
      */
-    void convertNotes( Document doc, Element elem )
+    ArrayList<File> findChangedSources() throws Exception
     {
-        if ( elem.getNodeName().equals("div") )
+        ArrayList<File> todo = new ArrayList<File>();
+        chooseShardDepth();
+        String inputs = hashInputs();
+        boolean sameInputs = manifest.sameInputs( inputs );
+        manifest.setInputs( inputs );
+        for ( int i=0;i<sources.size();i++ )
         {
-            if ( elem.hasAttribute("type") )
+            File s = sources.get( i );
+            String sName = simpleName( s.getName() );
+            String hash = Utils.hashFile( s );
+            boolean unchanged = !rebuildAll && sameInputs
+                && manifest.isUnchanged( sName, hash )
+                && Anthology.getFile(miscDir,sName,linkBase).exists();
+            ArrayList<String> old = manifest.getVersions( sName );
+            for ( int j=0;j<old.size()&&unchanged;j++ )
+            {
+                String key = old.get(j);
+                unchanged = poems.containsKey( key.substring(0,
+                    key.indexOf("/")) );
+            }
+            if ( unchanged )
+                System.out.println( "Skipping unchanged "+s.getName() );
+            else
             {
-                String noteType = elem.getAttribute("type").toLowerCase();
-                if ( noteType.equals("mjsnote") )
+                for ( int j=0;j<old.size();j++ )
                 {
-                    Node child = elem.getFirstChild();
-                    while ( child != null )
-                    {
-                        if ( child.getNodeType() == Node.ELEMENT_NODE )
-                        {
-                            if ( child.getNodeName().equals("p") )
-                            {
-                                Element note = doc.createElement("note");
-                                note.setAttribute("resp", "MJS");
-                                appendChildren( note, (Element)child );
-                                Node parent = elem.getParentNode();
-                                if ( parent != null )
-                                {
-                                    parent.replaceChild( note, elem );
-                                }
-                            }
-                        }
-                        child = child.getNextSibling();
-                    }
-                    return;
+                    String key = old.get(j);
+                    int pos = key.indexOf("/");
+                    poems.removeVersion( key.substring(0,pos), 
+                        key.substring(pos+1) );
                 }
+                manifest.reset( sName, hash );
+                todo.add( s );
             }
         }
-        else if ( elem.getNodeName().equals("floatingText"))
-        {
-            doc.renameNode( elem, "", "div" );
-        }
-        // recurse through children
-        Node child = elem.getFirstChild();
-        while ( child != null )
-        {
-            if ( child.getNodeType()==Node.ELEMENT_NODE )
-                convertNotes( doc, (Element)child );
-            child = child.getNextSibling();
-        }
-    }
-    private Document readXML() throws Exception
-    {
-        FileInputStream fis = new FileInputStream( src );
-        byte[] data = new byte[(int)src.length()];
-        fis.read( data );
-        fis.close();
-        String tei = new String( data, "UTF-8" );
-        poems = new FileMap( folder );
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder db = dbf.newDocumentBuilder();
-        StringReader sr = new StringReader( tei );
-        InputSource is = new InputSource( sr );
-        return db.parse( is ); 
+        return todo;
     }
     /**
-     * Parse the input file
+     * Parse all the input files. The works table, poem map, versions and 
+     * anthologies are loaded once and every changed source is folded into 
+     * them before anything is written out.
      */
     public void parse() throws Exception
     {
         try
         {
-            Anthology anth = new Anthology( miscDir, 
-                simpleName(src.getName()), linkBase, HARPUR_SERVER );
-            anthologies.put(simpleName(src.getName()),anth);
+            metrics.start( "index" );
+            manifest = new BuildManifest( topLevelFolder );
+            loadWorks();
             versions = new VersionsDocument( folder );
             versions.internalise();
-            Document doc = readXML();
-            Element root = doc.getDocumentElement();
-            convertNotes( doc, root );
-            split( doc, root );
-            poems.save( folder, anth, useSubFolders );
+            poems = new FileMap( folder );
+            poems.setSaveThreads( saveThreads );
+            if ( useBlobs )
+                BlobStore.open( new File(topLevelFolder,BLOB_DIR) );
+            metrics.start( "scan" );
+            ArrayList<File> todo = findChangedSources();
+            metrics.start( "load" );
+            for ( int i=0;i<todo.size();i++ )
+            {
+                String sName = simpleName(todo.get(i).getName());
+                Anthology anth = new Anthology( miscDir, sName, linkBase, 
+                    HARPUR_SERVER );
+                anthologies.put( sName, anth );
+            }
+            metrics.start( "split" );
+            if ( poemThreads > 1 )
+                poemPool = new ForkJoinPool( poemThreads );
+            // with subfolders by range no work's folder is known yet
+            if ( writeQueue > 0 && !useSubFolders )
+                writeBehind = new WriteBehind( saveThreads, writeQueue );
+            parseSources( todo );
+            metrics.start( "save" );
+            if ( writeBehind != null )
+            {
+                writeBehind.finish();
+                writeBehind = null;
+            }
+            poems.save( folder, anthologies, useSubFolders, shardDepth );
+            metrics.start( "anthologies" );
             boolean res = true;
             if ( !miscDir.exists() )
                 res = miscDir.mkdir();
             if ( !res )
                 throw new Exception("Failed to create anthologies dir");
-            anth.externalise();
+            Iterator<Anthology> iter = anthologies.values().iterator();
+            while ( iter.hasNext() )
+                iter.next().externalise( join );
+            metrics.start( "finish" );
             versions.externalise();
+            // what the manifest records must be on disk before it is
+            FileIO.sync();
+            manifest.externalise();
             // write archive file
             File arc = new File( topLevelFolder, "archive.conf" );
             if ( !arc.exists() )
+                FileIO.write( arc, archive.getBytes() );
+            BlobStore blobs = BlobStore.get();
+            if ( blobs != null )
             {
-                FileOutputStream fos = new FileOutputStream( arc );
-                byte[] jsonData = archive.getBytes();
-                fos.write( jsonData );
-                fos.close();
+                int pruned = blobs.prune();
+                System.out.println( "Blobs: "+blobs.written.get()
+                    +" written, "+blobs.linked.get()+" linked, "+pruned+" pruned" );
             }
+            metrics.end();
         }
         catch ( Exception e )
         {
             e.printStackTrace( System.out );
         }
+        finally
+        {
+            if ( poemPool != null )
+                poemPool.shutdownNow();
+            if ( writeBehind != null )
+                writeBehind.abort();
+            BlobStore.close();
+            PayloadStore.release();
+        }
     }
     /**
      * @param args the command line arguments
@@ -806,11 +891,23 @@ public class Anthologiser
         Anthologiser a = new Anthologiser();
         try
         {
+            a.metrics.start( "args" );
             if ( a.checkArgs(args) )
             {
                 a.parse();
                 if ( a.join )
+                {
+                    a.metrics.start( "join" );
                     a.joinAnthologies();
+                }
+                if ( FileIO.durability != Durability.NONE )
+                {
+                    a.metrics.start( "sync" );
+                    FileIO.sync();
+                }
+                a.metrics.printSummary( System.out );
+                if ( a.metricsFile != null )
+                    a.metrics.externalise( a.metricsFile );
             }  
             else
                 usage();
@@ -13,19 +13,16 @@
  */
 package anthologiser;
 import calliope.json.JSONDocument;
-import org.htmlparser.Parser;
-import org.htmlparser.Node;
-import org.htmlparser.Tag;
-import org.htmlparser.Text;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileInputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ArrayList;
-import org.htmlparser.util.NodeList;
 /**
  * Represent an anthology file in HTML format. Preserve the order of poems 
- * added to the anthology. Structure is:
+ * added to the anthology. Its state is kept in a JSON-lines file in 
+ * anthology-state beside the anthologies folder: a line with the title 
+ * and description, then one per link in order. The HTML is only ever 
+ * written from that state, never read back. Structure is:
  * anthologies
  *     |
  *     parent ----- [HTML]
@@ -44,12 +41,22 @@ public class Anthology
     File src;
     /** anthology file */
     File htmlFile;
-    /** order-preserving array */
-    ArrayList<String> order;
+    /** order-preserving array of titles ignoring punctuation */
+    ArrayList<PunctIgnoreString> order;
     /** the name of this anthology */
     String name;
     /** relative links to resources in database, ensures uniqueness */
-    HashMap<String,String> links;
+    HashMap<PunctIgnoreString,String> links;
+    /** the titles as shown, which may differ in punctuation */
+    HashMap<PunctIgnoreString,String> names;
+    /** names added this run: the others were loaded and are now gone */
+    HashSet<PunctIgnoreString> added;
+    /** true once the description has been found in the source */
+    boolean described;
+    /** where our state is kept */
+    File stateFile;
+    /** folder beside the anthologies holding their state */
+    static final String STATE_DIR = "anthology-state";
     /**
      * Read in an existing anthology or create an empty one
      * @param dir the misc directory where the anthology files reside
@@ -60,22 +67,37 @@ public class Anthology
     public Anthology( File dir, String simpleName, String linkBase, 
         String server ) throws Exception
     {
-        links = new HashMap<String,String>();
-        order = new ArrayList<String>();
+        links = new HashMap<PunctIgnoreString,String>();
+        names = new HashMap<PunctIgnoreString,String>();
+        order = new ArrayList<PunctIgnoreString>();
+        added = new HashSet<PunctIgnoreString>();
         this.linkBase = linkBase;
         this.name = simpleName;
         this.server = server;
         title = simpleName;
-        File temp = new File( dir, linkBase+"/"+"anthologies" );
+        htmlFile = getFile( dir, simpleName, linkBase );
+        File temp = htmlFile.getParentFile();
         boolean res = true;
         if ( !temp.exists() )
             res = temp.mkdirs();
         if ( !res )
             throw new Exception("Couldn't create "+temp.getPath());
-        htmlFile = new File( temp, simpleName );
         src = htmlFile;
+        stateFile = new File( new File(temp.getParentFile(),STATE_DIR), 
+            simpleName+".jsonl" );
         internalise();
     }
+    /**
+     * Get the location of an anthology file
+     * @param dir the misc directory where the anthology files reside
+     * @param simpleName short name of the anthology
+     * @param linkBase the prefix for all links
+     * @return the anthology's HTML file
+     */
+    static File getFile( File dir, String simpleName, String linkBase )
+    {
+        return new File( new File(dir,linkBase+"/"+"anthologies"), simpleName );
+    }
     /**
      * Set this anthology's title
      * @param title the name for the collection as stated in the source
@@ -85,12 +107,13 @@ public class Anthology
         this.title = title;
     }
     /**
-     * Has the description already been set?
+     * Has the description already been set from the source? One kept 
+     * from the last run doesn't count.
      * @return true if it has
      */
     public boolean descriptionSet()
     {
-        return description != null && description.length()>0;
+        return described && description != null && description.length()>0;
     }
     /**
      * Has the title already been set?
@@ -107,6 +130,7 @@ public class Anthology
     public void setDescription( String content )
     {
         this.description = content;
+        this.described = true;
     }
     /**
      * Get the prefix for all links
@@ -117,7 +141,10 @@ public class Anthology
         return linkBase;
     }
     /**
-     * Add a work name to the anthology
+     * Add a work name to the anthology. Names that differ only in their
+     * punctuation are the same item. A name loaded from the last run is
+     * replaced by the one added now; of those added in this run the 
+     * first is kept.
      * @param name name of a work
      * @param link link to the resource
      */
@@ -125,34 +152,63 @@ public class Anthology
     {
         // avoid duplicates, like hashmap
         name = name.replace("%2f","/");
-        if ( !links.containsKey(name) )
-            order.add( name );
-        links.put( name, link );
+        PunctIgnoreString key = new PunctIgnoreString( name );
+        if ( !links.containsKey(key) )
+            order.add( key );
+        links.put( key, link );
+        if ( added.add(key) )
+            names.put( key, name );
     }
     /**
-     * Write out this anthology
+     * Forget links loaded from the last run that weren't added again, 
+     * keeping the order of the rest
      */
-    void externalise() throws Exception
+    private void dropStale()
+    {
+        ArrayList<PunctIgnoreString> kept 
+            = new ArrayList<PunctIgnoreString>( added.size() );
+        for ( int i=0;i<order.size();i++ )
+        {
+            PunctIgnoreString key = order.get( i );
+            if ( added.contains(key) )
+                kept.add( key );
+            else
+            {
+                links.remove( key );
+                names.remove( key );
+            }
+        }
+        order = kept;
+    }
+    /**
+     * Write out this anthology and its state
+     * @param joined true if its description goes in the index instead
+     */
+    void externalise( boolean joined ) throws Exception
     {
         boolean res = true;
+        dropStale();
         // construct the html for one list
         StringBuilder sb = new StringBuilder();
-        sb.append("<li>");
-        sb.append(description);
+        if ( !joined )
+        {
+            sb.append("<li>");
+            sb.append(description);
+        }
         sb.append( "<ul>\n" );
         for ( int i=0;i<order.size();i++ )
         {
-            String key = order.get( i );
+            PunctIgnoreString key = order.get( i );
             sb.append("<li><a href=\"");
             sb.append(server);
             sb.append("mvdsingle?DOC_ID=");
             String value = links.get(key);
             sb.append( value );
             sb.append("\">");
-            sb.append( key );
+            sb.append( names.get(key) );
             sb.append( "</a></li>\n" );
         }
-        sb.append("</ul></li>");
+        sb.append( joined?"</ul>":"</ul></li>" );
         // write out the text
         if ( !src.exists() )
         {
@@ -167,108 +223,81 @@ public class Anthology
             if ( !res )
                 throw new Exception("failed to create "+src.getName());
         }
-        FileOutputStream fos = new FileOutputStream( src );
-        fos.write( sb.toString().getBytes("UTF-8") );
-        fos.close();
+        AnthologyWriteEvent event = new AnthologyWriteEvent();
+        event.begin();
+        byte[] data = sb.toString().getBytes("UTF-8");
+        FileIO.write( src, data );
+        if ( event.shouldCommit() )
+        {
+            event.name = name;
+            event.items = order.size();
+            event.bytes = data.length;
+            event.commit();
+        }
+        writeState();
+    }
+    /**
+     * Save the title, description and links as JSON lines
+     * @throws Exception 
+     */
+    private void writeState() throws Exception
+    {
+        File dir = stateFile.getParentFile();
+        if ( !dir.exists() && !dir.mkdirs() )
+            throw new Exception("failed to create "+dir.getPath());
+        StringBuilder sb = new StringBuilder();
+        JSONDocument head = new JSONDocument();
+        head.put( JSONKeys.TITLE, title );
+        if ( description != null )
+            head.put( JSONKeys.DESCRIPTION, description );
+        sb.append( JSONWriter.toJSONLine(head) ).append( "\n" );
+        for ( int i=0;i<order.size();i++ )
+        {
+            JSONDocument item = new JSONDocument();
+            item.put( JSONKeys.NAME, names.get(order.get(i)) );
+            item.put( JSONKeys.LINK, links.get(order.get(i)) );
+            sb.append( JSONWriter.toJSONLine(item) ).append( "\n" );
+        }
+        FileIO.write( stateFile, sb.toString().getBytes("UTF-8") );
     }
     File getAnthologiesDir()
     {
         return htmlFile.getParentFile();
     }
     /**
-     * Read in an anthology OR just specify where you want it to be
-     * @param src the source anthology file
-     * @param msrc the markup source, in same folder ideally
+     * Load the state saved by the last run, if there was one
      * @throws Exception 
      */
     private void internalise() throws Exception
     {
-        if ( src.exists() )
+        if ( stateFile.exists() )
         {
-            File confFile = new File( src.getParentFile(),"config.conf");
-            if ( confFile.exists() )
+            String text = FileIO.readString( stateFile );
+            String[] lines = text.split( "\n" );
+            for ( int i=0;i<lines.length;i++ )
             {
-                JSONDocument conf = JSONDocument.internalise( confFile, "UTF-8" );
-                this.title = (String)conf.get( JSONKeys.TITLE );
-                if ( this.title.contains("\"") )
-                    this.title = this.title.replace("\"","\\\"");
-            }
-            FileInputStream fis = new FileInputStream( src );
-            int len = (int)src.length();
-            byte[] data = new byte[len];
-            fis.read( data );
-            fis.close();
-            String html = new String(data,"UTF-8");
-            Parser parser = Parser.createParser(html, "UTF-8");
-            NodeList list = parser.parse (null);
-            int state = 0;
-            String link = "";
-            for ( int i=0;i<list.size();i++ )
-            {
-                Node n = list.elementAt(i);
-                switch ( state )
+                if ( lines[i].length() == 0 )
+                    continue;
+                JSONDocument doc = JSONDocument.internalise( lines[i] );
+                if ( doc == null )
+                    throw new Exception("Invalid line "+(i+1)+" in "
+                        +stateFile.getPath());
+                else if ( i == 0 )
+                {
+                    if ( doc.containsKey(JSONKeys.TITLE) )
+                        title = (String)doc.get( JSONKeys.TITLE );
+                    description = (String)doc.get( JSONKeys.DESCRIPTION );
+                }
+                else
                 {
-                    case 0:
-                        if ( n instanceof Tag )
-                        {
-                           Tag t = (Tag)n;
-                            if ( !t.isEndTag() )
-                            {
-                                if ( t.getTagName().equals("h1") )
-                                state = 1;
-                                else if ( t.getTagName().equals("h2") )
-                                    state = 2;
-                                else if ( t.getTagName().equals("p") )
-                                    state = 3;
-                            }
-                        }
-                        break;
-                    case 1:
-                        if ( n instanceof Tag && ((Tag)n).isEndTag() )
-                            state = 0;
-                        else if ( n instanceof Text )
-                        {
-                            title = ((Text)n).getText();
-                            state = 0;
-                        }
-                        break;
-                    case 2:
-                        if ( n instanceof Tag && ((Tag)n).isEndTag() )
-                            state = 0;
-                        else if ( n instanceof Text )
-                        {
-                            description = ((Text)n).getText();
-                            state = 0;
-                        }
-                        break;
-                    case 3:
-                        if ( n instanceof Tag )
-                        {
-                            if ( ((Tag)n).isEndTag() )
-                                state = 0;
-                            else if ( ((Tag)n).getTagName().equals("a") )
-                            {
-                                link = ((Tag)n).getAttribute("href");
-                                state = 4;
-                            }
-                        }
-                        break;
-                    case 4:
-                        if ( n instanceof Text )
-                        {
-                            String name = ((Text)n).getText();
-                            addItem( name, link );
-                            state = 0;
-                        }
-                        else if ( n instanceof Tag && ((Tag)n).isEndTag() )
-                        {
-                            state = 0;
-                        }
-                        break;
+                    String name = (String)doc.get( JSONKeys.NAME );
+                    PunctIgnoreString key = new PunctIgnoreString( name );
+                    if ( !links.containsKey(key) )
+                        order.add( key );
+                    links.put( key, (String)doc.get(JSONKeys.LINK) );
+                    names.put( key, name );
                 }
             }
-            src.delete();
-            // html file will be written out afresh by externalise
         }
         // not an error, just not already existing
     }
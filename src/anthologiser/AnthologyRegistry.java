@@ -0,0 +1,214 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import calliope.json.JSONDocument;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The anthologies listed in the index, kept in anthologies.conf beside
+ * the anthologies folder. Each run updates the entries for its own
+ * anthologies and the index is written out again from the whole list,
+ * so no anthology file has to be read to build it. Only the files a
+ * run without -j left with their description are read and cut down.
+ * @author desmond
+ */
+public class AnthologyRegistry
+{
+    static final String REGISTRY_FILE = "anthologies.conf";
+    static final String INDEX_FILE = "index";
+    static final String INDEX_START =
+        "<div id=\"anthologyIndex\" class=\"listContainer\">\n"
+        +"<ul class=\"expList\">";
+    static final String INDEX_END = "</ul></div>";
+    /** the folder holding the anthology files */
+    File dir;
+    /** where the registry is kept */
+    File file;
+    /** entries keyed by anthology name */
+    TreeMap<String,Entry> entries;
+    /**
+     * One anthology's line in the index
+     */
+    static class Entry
+    {
+        String description;
+        String url;
+        Entry( String description, String url )
+        {
+            this.description = description;
+            this.url = url;
+        }
+    }
+    /**
+     * Load the registry for an anthologies folder. If there isn't one
+     * yet it is made from the folder's existing index and files. Either
+     * way any anthology written since by a run that didn't join them
+     * is cut down and registered too.
+     * @param dir the anthologies folder
+     * @throws Exception
+     */
+    AnthologyRegistry( File dir ) throws Exception
+    {
+        this.dir = dir;
+        this.file = new File( dir.getParentFile(), REGISTRY_FILE );
+        entries = new TreeMap<String,Entry>();
+        HashMap<String,String> described = new HashMap<String,String>();
+        if ( file.exists() )
+            internalise();
+        else
+            described = readIndex();
+        foldUnjoined( described );
+    }
+    /**
+     * Add or replace an anthology's entry
+     * @param name the anthology's name, also its file name
+     * @param description the text of its link in the index
+     * @param url the link
+     */
+    void register( String name, String description, String url )
+    {
+        entries.put( name, new Entry(description,url) );
+    }
+    /**
+     * Read the registry
+     * @throws Exception
+     */
+    private void internalise() throws Exception
+    {
+        JSONDocument doc = JSONDocument.internalise( 
+            FileIO.readString(file) );
+        if ( doc == null )
+            throw new Exception("Invalid registry "+file.getPath());
+        Iterator<String> iter = doc.keySet().iterator();
+        while ( iter.hasNext() )
+        {
+            String name = iter.next();
+            JSONDocument e = (JSONDocument)doc.get( name );
+            register( name, (String)e.get(JSONKeys.DESCRIPTION),
+                (String)e.get(JSONKeys.LINK) );
+        }
+    }
+    /**
+     * Read the descriptions from an index made before there was a
+     * registry.
+     * @return the descriptions keyed by link
+     * @throws Exception
+     */
+    private HashMap<String,String> readIndex() throws Exception
+    {
+        HashMap<String,String> described = new HashMap<String,String>();
+        File index = new File( dir, INDEX_FILE );
+        if ( index.exists() )
+        {
+            String html = FileIO.readString( index );
+            int pos = 0;
+            while ( (pos=html.indexOf("<li><a href=\"",pos)) != -1 )
+            {
+                pos += 13;
+                int end = html.indexOf( "\">", pos );
+                int close = html.indexOf( "</a></li>", end );
+                if ( end == -1 || close == -1 )
+                    break;
+                String url = html.substring( pos, end );
+                described.put( url, html.substring(end+2,close) );
+                pos = close;
+            }
+        }
+        return described;
+    }
+    /**
+     * Register the anthology files not yet joined, which still carry
+     * their description, and cut them down as joinAnthologies used to.
+     * Files already joined keep their entry, or take one from the old
+     * index if there is no registry yet.
+     * @param described descriptions from an old index keyed by link
+     * @throws Exception
+     */
+    private void foldUnjoined( HashMap<String,String> described ) 
+        throws Exception
+    {
+        File[] files = dir.listFiles();
+        for ( int i=0;files!=null&&i<files.length;i++ )
+        {
+            String name = files[i].getName();
+            if ( !files[i].isFile() || name.equals(INDEX_FILE)
+                || name.endsWith(".conf") )
+                continue;
+            String url = Anthologiser.MISC_URL+name.toLowerCase();
+            String contents = ( unjoined(files[i]) )
+                ? FileIO.readString( files[i] ) : "";
+            int ulPos = contents.indexOf("<ul>");
+            if ( ulPos > 4 && contents.endsWith("</li>") )
+            {
+                register( name, contents.substring(4,ulPos), url );
+                String part = contents.substring(ulPos,contents.length()-5);
+                FileIO.write( files[i], part.getBytes("UTF-8") );
+            }
+            else if ( !entries.containsKey(name) 
+                && described.containsKey(url) )
+                register( name, described.get(url), url );
+        }
+    }
+    /**
+     * Does an anthology file still start with its description?
+     * @param f the anthology file
+     * @return true if it begins with a list item, not a list
+     * @throws Exception
+     */
+    private static boolean unjoined( File f ) throws Exception
+    {
+        byte[] head = FileIO.readHead( f, 4 );
+        return new String(head,"UTF-8").equals("<li>");
+    }
+    /**
+     * Write the index of all registered anthologies
+     * @throws Exception
+     */
+    void writeIndex() throws Exception
+    {
+        StringBuilder sb = new StringBuilder( INDEX_START );
+        Iterator<Map.Entry<String,Entry>> iter = entries.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Entry e = iter.next().getValue();
+            sb.append("<li><a href=\"").append( e.url ).append("\">");
+            sb.append( e.description ).append("</a></li>\n");
+        }
+        sb.append( INDEX_END );
+        File index = new File( dir, INDEX_FILE );
+        FileIO.write( index, sb.toString().getBytes("UTF-8") );
+    }
+    /**
+     * Save the registry
+     * @throws Exception
+     */
+    void externalise() throws Exception
+    {
+        JSONDocument doc = new JSONDocument();
+        Iterator<Map.Entry<String,Entry>> iter = entries.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<String,Entry> me = iter.next();
+            JSONDocument e = new JSONDocument();
+            e.put( JSONKeys.DESCRIPTION, me.getValue().description );
+            e.put( JSONKeys.LINK, me.getValue().url );
+            doc.put( me.getKey(), e );
+        }
+        FileIO.write( file, JSONWriter.toJSON(doc).getBytes("UTF-8") );
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.DataAmount;
+
+/**
+ * JFR event: an anthology's HTML written out.
+ * @author desmond
+ */
+@Name("anthologiser.AnthologyWrite")
+@Label("Anthology Write")
+@Category("Anthologiser")
+@Description("An anthology's HTML written out")
+public class AnthologyWriteEvent extends Event
+{
+    @Label("Name")
+    @Description("The anthology's simple name")
+    String name;
+    @Label("Items")
+    @Description("The number of works it lists")
+    int items;
+    @Label("Bytes")
+    @DataAmount
+    @Description("The size of the HTML")
+    long bytes;
+}
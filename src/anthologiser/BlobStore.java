@@ -0,0 +1,183 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed storage for versions. Each distinct content is
+ * written once, as a file named by its SHA-1 digest, and every work
+ * holding that content gets a hard link to it. The archive keeps its
+ * usual layout, so readers need not know about the store. Where hard
+ * links aren't supported FileIO.link copies instead.
+ * @author desmond
+ */
+public class BlobStore
+{
+    /** the store in use, or null if versions are written directly */
+    private static BlobStore shared;
+    /** the directory holding the blobs */
+    File dir;
+    /** blobs written and links made this run */
+    final AtomicInteger written = new AtomicInteger();
+    final AtomicInteger linked = new AtomicInteger();
+    /** numbers the temporary files so writers never share one */
+    private final AtomicLong temps = new AtomicLong();
+    /**
+     * Create a store
+     * @param dir its directory, created if need be
+     * @throws Exception
+     */
+    BlobStore( File dir ) throws Exception
+    {
+        this.dir = dir;
+        if ( !dir.exists() && !dir.mkdirs() )
+            throw new Exception("Couldn't create "+dir.getPath());
+    }
+    /**
+     * Start using a store for the rest of the run
+     * @param dir its directory
+     * @throws Exception
+     */
+    static synchronized void open( File dir ) throws Exception
+    {
+        shared = new BlobStore( dir );
+    }
+    /**
+     * Get the store in use
+     * @return the store or null if there is none
+     */
+    static synchronized BlobStore get()
+    {
+        return shared;
+    }
+    /**
+     * Stop using the store
+     */
+    static synchronized void close()
+    {
+        shared = null;
+    }
+    /**
+     * Get the file for some content
+     * @param digest the content's digest in hex
+     * @return the blob's file, which may not exist yet
+     */
+    File blobFile( String digest )
+    {
+        return new File( new File(dir,digest.substring(0,2)), digest );
+    }
+    /**
+     * Make a file hold some content by linking it to the blob, writing
+     * the blob first if this content is new. The blob appears whole or
+     * not at all, so a crash can't leave a truncated one to be linked.
+     * Nothing is locked: writers of the same new content each use their
+     * own temporary file and the first to publish it wins.
+     * @param data the content
+     * @param dst the file that should hold it
+     * @return false if dst was already linked to the blob
+     * @throws Exception
+     */
+    boolean put( PayloadStore.Payload data, File dst ) throws Exception
+    {
+        File blob = blobFile( data.getDigest() );
+        if ( !blob.exists() )
+        {
+            File sub = blob.getParentFile();
+            if ( !sub.exists() && !sub.mkdirs() && !sub.isDirectory() )
+                throw new Exception("Couldn't create "+sub.getPath());
+            File tmp = new File( sub, blob.getName()+"."
+                +temps.incrementAndGet()+".tmp" );
+            data.writeTo( tmp );
+            if ( publish(tmp,blob) )
+                written.incrementAndGet();
+        }
+        else if ( dst.exists() && Files.isSameFile(dst.toPath(),blob.toPath()) )
+        {
+            Metrics.skipped();
+            return false;
+        }
+        FileIO.link( blob, dst );
+        linked.incrementAndGet();
+        return true;
+    }
+    /**
+     * Give a freshly written blob its name unless another writer got
+     * there first. Linking the name fails if it exists, so a published
+     * blob is never replaced and the links already made to it stay
+     * shared. Where links aren't supported the file is moved instead.
+     * @param tmp the complete temporary file, removed either way
+     * @param blob the blob's file
+     * @return true if tmp became the blob
+     * @throws Exception
+     */
+    private boolean publish( File tmp, File blob ) throws Exception
+    {
+        try
+        {
+            Files.createLink( blob.toPath(), tmp.toPath() );
+            FileIO.renamed( tmp, blob );
+        }
+        catch ( FileAlreadyExistsException e )
+        {
+            tmp.delete();
+            return false;
+        }
+        catch ( Exception e )
+        {
+            if ( blob.exists() )
+            {
+                tmp.delete();
+                return false;
+            }
+            FileIO.move( tmp, blob );
+            return true;
+        }
+        tmp.delete();
+        return true;
+    }
+    /**
+     * Delete blobs that no work links to any more. Needs a filesystem
+     * that reports link counts; elsewhere nothing is deleted.
+     * @return the number of blobs deleted
+     */
+    int prune()
+    {
+        int pruned = 0;
+        File[] subs = dir.listFiles();
+        for ( int i=0;subs!=null&&i<subs.length;i++ )
+        {
+            File[] blobs = subs[i].listFiles();
+            for ( int j=0;blobs!=null&&j<blobs.length;j++ )
+            {
+                try
+                {
+                    Object n = Files.getAttribute( blobs[j].toPath(),
+                        "unix:nlink" );
+                    if ( n instanceof Integer && ((Integer)n).intValue()==1
+                        && FileIO.delete(blobs[j]) )
+                        pruned++;
+                }
+                catch ( Exception e )
+                {
+                    return pruned;
+                }
+            }
+        }
+        return pruned;
+    }
+}
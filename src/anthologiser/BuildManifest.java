@@ -0,0 +1,199 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import calliope.json.JSONDocument;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Record of what the last run was built from, kept next to archive.conf.
+ * Holds a hash of each source file and of the works table, config and
+ * settings they were split with, plus the versions each source produced,
+ * so that a rerun can skip unchanged sources and clean up after changed
+ * ones.
+ * @author desmond
+ */
+public class BuildManifest
+{
+    static String MANIFEST_FILE = "build.conf";
+    static String INPUTS = "inputs";
+    static String SOURCES = "sources";
+    static String HASH = "hash";
+    static String SHARDS = "shards";
+    /** the manifest file */
+    File file;
+    /** hash of the works table, config and settings */
+    String inputs;
+    /** levels of shards the works were saved in, or 0 */
+    int shards;
+    /** hashes of the source files keyed by simple name */
+    HashMap<String,String> hashes;
+    /** keys of the versions each source produced: "%work/file" */
+    HashMap<String,ArrayList<String>> versions;
+    /**
+     * Load the manifest if there is one
+     * @param dir the top-level output folder
+     */
+    public BuildManifest( File dir )
+    {
+        this.file = new File( dir, MANIFEST_FILE );
+        this.inputs = "";
+        hashes = new HashMap<String,String>();
+        versions = new HashMap<String,ArrayList<String>>();
+        internalise();
+    }
+    /**
+     * Read the manifest file. A missing or damaged one is just empty.
+     */
+    private void internalise()
+    {
+        if ( file.exists() )
+        {
+            JSONDocument doc = null;
+            try
+            {
+                doc = JSONDocument.internalise( FileIO.readString(file) );
+            }
+            catch ( Exception e )
+            {
+                // unreadable, so start afresh
+            }
+            if ( doc != null && doc.containsKey(SOURCES) )
+            {
+                inputs = (String)doc.get( INPUTS );
+                Object depth = doc.get( SHARDS );
+                if ( depth instanceof Number )
+                    shards = ((Number)depth).intValue();
+                ArrayList array = (ArrayList)doc.get( SOURCES );
+                for ( int i=0;i<array.size();i++ )
+                {
+                    JSONDocument subDoc = (JSONDocument)array.get( i );
+                    String name = (String)subDoc.get(JSONKeys.NAME);
+                    hashes.put( name, (String)subDoc.get(HASH) );
+                    ArrayList list = (ArrayList)subDoc.get(JSONKeys.VERSIONS);
+                    ArrayList<String> keys = new ArrayList<String>();
+                    for ( int j=0;j<list.size();j++ )
+                        keys.add( (String)list.get(j) );
+                    versions.put( name, keys );
+                }
+            }
+        }
+    }
+    /**
+     * Save the manifest
+     * @throws Exception
+     */
+    void externalise() throws Exception
+    {
+        JSONDocument doc = new JSONDocument();
+        doc.put( INPUTS, inputs );
+        if ( shards > 0 )
+            doc.put( SHARDS, shards );
+        String[] names = new String[hashes.size()];
+        hashes.keySet().toArray( names );
+        Arrays.sort( names );
+        ArrayList<JSONDocument> array = new ArrayList<JSONDocument>();
+        for ( int i=0;i<names.length;i++ )
+        {
+            JSONDocument subDoc = new JSONDocument();
+            subDoc.put( JSONKeys.NAME, names[i] );
+            subDoc.put( HASH, hashes.get(names[i]) );
+            subDoc.put( JSONKeys.VERSIONS, getVersions(names[i]) );
+            array.add( subDoc );
+        }
+        doc.put( SOURCES, array );
+        FileIO.write( file, JSONWriter.toJSON(doc).getBytes("UTF-8") );
+    }
+    /**
+     * Were the sources last split with the same works, config and settings?
+     * If not every source must be split again.
+     * @param hash hash of the current works table, config and settings
+     * @return true if nothing has changed
+     */
+    boolean sameInputs( String hash )
+    {
+        return inputs.equals( hash );
+    }
+    /**
+     * Record the hash of the works table, config and settings
+     * @param hash the new hash
+     */
+    void setInputs( String hash )
+    {
+        this.inputs = hash;
+    }
+    /**
+     * Get the levels of shards the works were last saved in
+     * @return the depth or 0 if they weren't sharded
+     */
+    int getShards()
+    {
+        return shards;
+    }
+    /**
+     * Record the levels of shards the works are saved in
+     * @param depth the depth or 0 if they aren't sharded
+     */
+    void setShards( int depth )
+    {
+        this.shards = depth;
+    }
+    /**
+     * Is a source unchanged since the last run?
+     * @param name the simple name of the source
+     * @param hash the hash of its current content
+     * @return true if it has been split before with this content
+     */
+    boolean isUnchanged( String name, String hash )
+    {
+        return hash.equals( hashes.get(name) );
+    }
+    /**
+     * Get the versions a source produced last time
+     * @param name the simple name of the source
+     * @return a list of "%work/file" keys, possibly empty
+     */
+    synchronized ArrayList<String> getVersions( String name )
+    {
+        ArrayList<String> list = versions.get( name );
+        if ( list == null )
+        {
+            list = new ArrayList<String>();
+            versions.put( name, list );
+        }
+        return list;
+    }
+    /**
+     * Forget what a source produced before it is split again
+     * @param name the simple name of the source
+     * @param hash the hash of its new content
+     */
+    synchronized void reset( String name, String hash )
+    {
+        hashes.put( name, hash );
+        versions.put( name, new ArrayList<String>() );
+    }
+    /**
+     * Record a version produced by a source
+     * @param name the simple name of the source
+     * @param key the work's key in the FileMap
+     * @param file the version's file name in the work
+     */
+    synchronized void addVersion( String name, String key, String file )
+    {
+        getVersions(name).add( key+"/"+file );
+    }
+}
@@ -27,7 +27,15 @@ public class Config
     static Config internalise( File src )
     {
         Config c = new Config();
-        JSONDocument jdoc = JSONDocument.internalise( src, "UTF-8" );
+        JSONDocument jdoc = null;
+        try
+        {
+            jdoc = JSONDocument.internalise( FileIO.readString(src) );
+        }
+        catch ( Exception e )
+        {
+            // no names to translate
+        }
         c.poemNames = loadPoemNames( jdoc );
         c.removals = loadRemovals( jdoc );
         return c;
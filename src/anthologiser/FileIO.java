@@ -0,0 +1,590 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copy, move and link files without passing their contents through the
+ * heap. Moves and links within one filesystem are just metadata updates;
+ * copies go through FileChannel.transferTo so the kernel can do them
+ * directly. Anything the filesystem refuses falls back to a plain
+ * buffered copy. In write-if-changed mode a file that already holds the
+ * right content is left alone, so its mtime doesn't change. Whole-file
+ * reads go through a small pool of direct buffers, or are mapped. Written
+ * files can be forced to disk as they are closed or all at once by 
+ * sync(); either way their directories are forced by sync().
+ * @author desmond
+ */
+public class FileIO
+{
+    static int BUFFER_SIZE = 65536;
+    /** the most direct buffers kept for reuse */
+    static int MAX_POOLED = 16;
+    /** the largest file readAll will read, as arrays can hold no more */
+    static final long MAX_ARRAY = Integer.MAX_VALUE-8;
+    /** direct buffers given back for reuse */
+    private static final ArrayBlockingQueue<ByteBuffer> buffers 
+        = new ArrayBlockingQueue<ByteBuffer>( MAX_POOLED );
+    /** if true don't rewrite files whose content is the same */
+    static volatile boolean skipUnchanged;
+    /** when written files are forced to disk */
+    static volatile Durability durability = Durability.NONE;
+    /** files written but not forced to disk yet */
+    private static final Set<File> unsyncedFiles 
+        = Collections.newSetFromMap( new ConcurrentHashMap<File,Boolean>() );
+    /** directories whose entries changed since the last sync */
+    private static final Set<File> unsyncedDirs 
+        = Collections.newSetFromMap( new ConcurrentHashMap<File,Boolean>() );
+    /**
+     * Note that a file has been written, forcing it to disk now if each
+     * file is to be durable when it is closed
+     * @param fos the stream it was written through, still open
+     * @param dst the file
+     * @throws IOException
+     */
+    static void written( FileOutputStream fos, File dst ) throws IOException
+    {
+        if ( durability == Durability.FILE )
+            fos.getFD().sync();
+        else if ( durability == Durability.END )
+            unsyncedFiles.add( dst );
+        changed( dst );
+    }
+    /**
+     * Note that a file was created, renamed or deleted, so that its 
+     * directory is forced to disk by the next sync
+     * @param f the file
+     */
+    static void changed( File f )
+    {
+        if ( durability != Durability.NONE )
+        {
+            File dir = f.getAbsoluteFile().getParentFile();
+            if ( dir != null )
+                unsyncedDirs.add( dir );
+        }
+    }
+    /**
+     * Note that a file now has another name, so that content still to
+     * be forced to disk is found under it after the old one goes
+     * @param src the old name
+     * @param dst the new name
+     */
+    static void renamed( File src, File dst )
+    {
+        if ( unsyncedFiles.remove(src) )
+            unsyncedFiles.add( dst );
+        changed( src );
+        changed( dst );
+    }
+    /**
+     * Force everything written since the last sync to disk: files first,
+     * then the directories naming them and those above, any of which may
+     * be new, so no directory can name a file whose content is lost.
+     * @throws Exception
+     */
+    static void sync() throws Exception
+    {
+        Iterator<File> iter = unsyncedFiles.iterator();
+        while ( iter.hasNext() )
+        {
+            File f = iter.next();
+            iter.remove();
+            if ( f.isFile() )
+            {
+                RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+                try
+                {
+                    raf.getFD().sync();
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+        }
+        Set<File> dirs = new HashSet<File>();
+        iter = unsyncedDirs.iterator();
+        while ( iter.hasNext() )
+        {
+            File dir = iter.next();
+            iter.remove();
+            while ( dir != null && dirs.add(dir) )
+                dir = dir.getParentFile();
+        }
+        iter = dirs.iterator();
+        while ( iter.hasNext() )
+            syncDir( iter.next() );
+    }
+    /**
+     * Force a directory's entries to disk
+     * @param dir the directory
+     */
+    private static void syncDir( File dir )
+    {
+        try
+        {
+            FileChannel ch = FileChannel.open( dir.toPath(), 
+                StandardOpenOption.READ );
+            try
+            {
+                ch.force( true );
+            }
+            finally
+            {
+                ch.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            // not every platform lets a directory be opened
+        }
+    }
+    /**
+     * Does a file already have the content we are about to write?
+     * Always false unless skipUnchanged is set. The size is checked
+     * before reading the file to hash it.
+     * @param dst the file to be written
+     * @param length the length of the new content
+     * @param digest the SHA-1 digest of the new content
+     * @return true if dst can be left alone
+     * @throws Exception
+     */
+    static boolean unchanged( File dst, long length, byte[] digest ) 
+        throws Exception
+    {
+        if ( skipUnchanged && dst.isFile() && dst.length() == length
+            && Arrays.equals(Utils.digestFile(dst),digest) )
+        {
+            Metrics.skipped();
+            return true;
+        }
+        else
+            return false;
+    }
+    /**
+     * Copy a file's content to another file, replacing it
+     * @param src the file to copy
+     * @param dst the file to create or overwrite
+     * @throws Exception
+     */
+    static void copy( File src, File dst ) throws Exception
+    {
+        if ( skipUnchanged && dst.isFile() && dst.length() == src.length() 
+            && unchanged(dst,src.length(),Utils.digestFile(src)) )
+            return;
+        long n;
+        try
+        {
+            n = channelCopy( src, dst );
+        }
+        catch ( IOException e )
+        {
+            n = streamCopy( src, dst );
+        }
+        Metrics.read( n );
+        Metrics.wrote( n );
+    }
+    /**
+     * Copy using channels, looping until transferTo has done it all
+     * @param src the file to copy
+     * @param dst the file to create or overwrite
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    private static long channelCopy( File src, File dst ) throws IOException
+    {
+        FileInputStream fis = new FileInputStream( src );
+        try
+        {
+            FileOutputStream fos = new FileOutputStream( dst );
+            try
+            {
+                FileChannel in = fis.getChannel();
+                FileChannel out = fos.getChannel();
+                long size = in.size();
+                long pos = 0;
+                while ( pos < size )
+                {
+                    long n = in.transferTo( pos, size-pos, out );
+                    if ( n <= 0 && in.size() <= pos )
+                        break;
+                    pos += n;
+                }
+                written( fos, dst );
+                return pos;
+            }
+            finally
+            {
+                fos.close();
+            }
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+    /**
+     * Copy through a buffer when channels can't be used
+     * @param src the file to copy
+     * @param dst the file to create or overwrite
+     * @return the number of bytes copied
+     * @throws Exception
+     */
+    static long streamCopy( File src, File dst ) throws Exception
+    {
+        InputStream in = new BufferedInputStream( new FileInputStream(src),
+            BUFFER_SIZE );
+        try
+        {
+            FileOutputStream fos = new FileOutputStream( dst );
+            OutputStream out = new BufferedOutputStream( fos, BUFFER_SIZE );
+            try
+            {
+                long n = copyStream( in, out );
+                out.flush();
+                written( fos, dst );
+                return n;
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    /**
+     * Copy everything left in one stream to another
+     * @param in the stream to read
+     * @param out the stream to write
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    static long copyStream( InputStream in, OutputStream out )
+        throws IOException
+    {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long total = 0;
+        int n;
+        while ( (n=in.read(buf)) != -1 )
+        {
+            out.write( buf, 0, n );
+            total += n;
+        }
+        return total;
+    }
+    /**
+     * Move a file or directory, replacing any file already there. Within
+     * one filesystem this is a rename; across filesystems the content is
+     * copied and the original deleted.
+     * @param src the file or directory to move
+     * @param dst its new location
+     * @throws Exception
+     */
+    static void move( File src, File dst ) throws Exception
+    {
+        try
+        {
+            Files.move( src.toPath(), dst.toPath(),
+                StandardCopyOption.ATOMIC_MOVE );
+            renamed( src, dst );
+        }
+        catch ( AtomicMoveNotSupportedException e )
+        {
+            moveByCopying( src, dst );
+        }
+        catch ( IOException e )
+        {
+            // ATOMIC_MOVE may not replace an existing file on some systems
+            if ( dst.isFile() && src.isFile() && dst.delete()
+                && src.renameTo(dst) )
+            {
+                renamed( src, dst );
+                return;
+            }
+            moveByCopying( src, dst );
+        }
+    }
+    /**
+     * Move by copying the content and deleting the original
+     * @param src the file or directory to move
+     * @param dst its new location
+     * @throws Exception
+     */
+    private static void moveByCopying( File src, File dst ) throws Exception
+    {
+        if ( src.isDirectory() )
+        {
+            if ( !dst.exists() && !dst.mkdirs() )
+                throw new Exception("Couldn't create "+dst.getPath());
+            File[] files = src.listFiles();
+            for ( int i=0;i<files.length;i++ )
+                moveByCopying( files[i], new File(dst,files[i].getName()) );
+        }
+        else
+            copy( src, dst );
+        if ( !src.delete() )
+            throw new Exception("Couldn't remove "+src.getPath());
+    }
+    /**
+     * Make a file appear at a second location too. A hard link if the
+     * filesystem allows it, else a copy.
+     * @param src the existing file
+     * @param dst the new name for it, replaced if it exists
+     * @throws Exception
+     */
+    static void link( File src, File dst ) throws Exception
+    {
+        try
+        {
+            if ( dst.exists() )
+                dst.delete();
+            Files.createLink( dst.toPath(), src.toPath() );
+            changed( dst );
+            Metrics.wrote( 0 );
+        }
+        catch ( Exception e )
+        {
+            copy( src, dst );
+        }
+    }
+    /**
+     * Take a direct buffer of BUFFER_SIZE bytes, reusing one given back
+     * @return an empty buffer
+     */
+    static ByteBuffer takeBuffer()
+    {
+        ByteBuffer bb = buffers.poll();
+        if ( bb == null )
+            bb = ByteBuffer.allocateDirect( BUFFER_SIZE );
+        bb.clear();
+        return bb;
+    }
+    /**
+     * Give a buffer back for reuse. If enough are pooled already it is 
+     * left to the collector.
+     * @param bb a buffer from takeBuffer that is no longer used
+     */
+    static void giveBack( ByteBuffer bb )
+    {
+        buffers.offer( bb );
+    }
+    /**
+     * Read a whole file. Unlike a single read() this doesn't stop short.
+     * Files too big for an array must be streamed or mapped instead.
+     * @param src the file to read
+     * @return its content
+     * @throws Exception
+     */
+    static byte[] readAll( File src ) throws Exception
+    {
+        FileInputStream fis = new FileInputStream( src );
+        ByteBuffer bb = takeBuffer();
+        try
+        {
+            FileChannel in = fis.getChannel();
+            long size = in.size();
+            if ( size > MAX_ARRAY )
+                throw new Exception(src.getPath()+" is too large to read");
+            byte[] data = new byte[(int)size];
+            int pos = 0;
+            while ( pos < data.length )
+            {
+                bb.clear();
+                bb.limit( Math.min(bb.capacity(),data.length-pos) );
+                if ( in.read(bb) == -1 )
+                    throw new Exception("Unexpected end of "+src.getPath());
+                bb.flip();
+                int n = bb.remaining();
+                bb.get( data, pos, n );
+                pos += n;
+            }
+            Metrics.read( data.length );
+            return data;
+        }
+        finally
+        {
+            giveBack( bb );
+            fis.close();
+        }
+    }
+    /**
+     * Read the start of a file. Reads until len bytes have been read or
+     * the file ends, so a short read doesn't stop it early.
+     * @param src the file to read
+     * @param len the most bytes to read
+     * @return the first len bytes, or fewer if the file is shorter
+     * @throws Exception
+     */
+    static byte[] readHead( File src, int len ) throws Exception
+    {
+        FileInputStream fis = new FileInputStream( src );
+        try
+        {
+            byte[] head = new byte[len];
+            int pos = 0;
+            int n;
+            while ( pos < len && (n=fis.read(head,pos,len-pos)) != -1 )
+                pos += n;
+            Metrics.read( pos );
+            return ( pos < len ) ? Arrays.copyOf(head,pos) : head;
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+    /**
+     * Read a whole text file
+     * @param src the file, in UTF-8
+     * @return its content
+     * @throws Exception
+     */
+    static String readString( File src ) throws Exception
+    {
+        return new String( readAll(src), "UTF-8" );
+    }
+    /**
+     * Map a whole file read-only. The mapping outlives the file's channel,
+     * which is closed at once. Nothing is counted as read until the 
+     * caller has used it.
+     * @param src the file, which must be under 2GB
+     * @return the mapped content
+     * @throws Exception
+     */
+    static MappedByteBuffer map( File src ) throws Exception
+    {
+        RandomAccessFile raf = new RandomAccessFile( src, "r" );
+        try
+        {
+            if ( raf.length() > Integer.MAX_VALUE )
+                throw new Exception(src.getPath()+" is too large to map");
+            return raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0,
+                raf.length() );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+    /**
+     * Compute the SHA-1 digest of a file's content, a buffer at a time
+     * @param src the file to digest
+     * @return the raw digest
+     * @throws Exception 
+     */
+    static byte[] digest( File src ) throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance( "SHA-1" );
+        FileInputStream fis = new FileInputStream( src );
+        ByteBuffer bb = takeBuffer();
+        try
+        {
+            FileChannel in = fis.getChannel();
+            long total = 0;
+            int n;
+            while ( (n=in.read(bb)) != -1 )
+            {
+                bb.flip();
+                md.update( bb );
+                bb.clear();
+                total += n;
+            }
+            Metrics.read( total );
+        }
+        finally
+        {
+            giveBack( bb );
+            fis.close();
+        }
+        return md.digest();
+    }
+    /**
+     * Write a byte array to a file, replacing its content
+     * @param dst the file to write
+     * @param data the content
+     * @throws Exception
+     */
+    static void write( File dst, byte[] data ) throws Exception
+    {
+        write( dst, data, 0, data.length );
+    }
+    /**
+     * Write part of a byte array to a file, replacing its content
+     * @param dst the file to write
+     * @param data the array holding the content
+     * @param off the offset of the content in data
+     * @param len its length
+     * @throws Exception
+     */
+    static void write( File dst, byte[] data, int off, int len ) 
+        throws Exception
+    {
+        if ( skipUnchanged 
+            && unchanged(dst,len,Utils.digest(data,off,len)) )
+            return;
+        FileOutputStream fos = new FileOutputStream( dst );
+        try
+        {
+            fos.write( data, off, len );
+            written( fos, dst );
+        }
+        finally
+        {
+            fos.close();
+        }
+        Metrics.wrote( len );
+    }
+    /**
+     * Delete a file
+     * @param file the file to delete
+     * @return true if it was deleted
+     */
+    static boolean delete( File file )
+    {
+        boolean res = file.delete();
+        if ( res )
+        {
+            changed( file );
+            Metrics.deleted();
+        }
+        return res;
+    }
+}
@@ -13,33 +13,24 @@
  */
 package anthologiser;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.File;
+import java.io.InputStream;
 /**
- * An individual file and its content stored externally.
+ * An individual file and its content, kept in the PayloadStore.
  * @author desmond
  */
 class FileItem 
 {
     /** the format of the file data */
     Format format;
-    /** the file's content (don't store it in memory) */
-    File cache;
+    /** the file's content, in memory or spilled */
+    PayloadStore.Payload payload;
     /** relative path from the FolderItem to here, including file name */
     String path;
     /** name of the raw file item */
     String name;
     /** the file name's suffix */
     String suffix;
-    final byte[] readFile( File src ) throws Exception
-    {
-        FileInputStream fis = new FileInputStream( src );
-        byte[] content = new byte[(int)src.length()];
-        fis.read( content );
-        fis.close();
-        return content;
-    }
     /**
      * Rename this item since it clashes with another
      * @param name the name of the new file
@@ -62,7 +53,7 @@ class FileItem
     {
         File f = new File( relPath, this.path );
         if ( f.exists() )
-            f.delete();
+            FileIO.delete( f );
     }
     /**
      * Get the file's basic name sans suffix
@@ -83,13 +74,11 @@ class FileItem
      */
     final void writeFile( File dst, byte[] content ) throws Exception
     {
-        FileOutputStream fos = new FileOutputStream( dst );
-        fos.write( content );
-        fos.close();
+        FileIO.write( dst, content );
     }
     /**
-     * Make a temporary file when extracting data from a larger file
-     * @param parent the temporary directory to store it in
+     * Store content extracted from a larger file
+     * @param parent the work's temporary directory
      * @param relPath the relative path
      * @param contents the contents to store there
      * @param name the name of the "file"
@@ -109,20 +98,24 @@ class FileItem
         {
         }
         this.path = makePath( relPath, name+suffix );
-        cache = File.createTempFile( "ANTH", suffix, parent );
-        writeFile( cache, contents );
+        payload = PayloadStore.get().add( contents, 0, contents.length );
     }
     /**
-     * Read the contents of the cache
+     * Get a copy of the contents
      * @return the contents
      * @throws Exception 
      */
     byte[] getContents() throws Exception
     {
-        FileInputStream fis = new FileInputStream( cache );
-        byte[] data = new byte[(int)cache.length()];
-        fis.read( data );
-        return data;
+        return payload.toByteArray();
+    }
+    /**
+     * Read the contents without copying them all first
+     * @return a stream over the contents
+     */
+    InputStream openStream()
+    {
+        return payload.openStream();
     }
     String getFormat()
     {
@@ -137,6 +130,14 @@ class FileItem
         else
             return null;
     }
+    /**
+     * Get the digest of the contents, computed when they were stored
+     * @return the SHA-1 digest in hex
+     */
+    String getDigest()
+    {
+        return payload.getDigest();
+    }
     /**
      * Is this object equal to another file item?
      * @param other the other file item or object
@@ -144,30 +145,21 @@ class FileItem
      */
     public boolean equals( Object other )
     {
-        try
+        if ( other instanceof FileItem )
         {
-            if ( other instanceof FileItem )
-            {
-                FileItem fi = (FileItem) other;
-                byte [] contents1 = this.getContents();
-                byte [] contents2 = fi.getContents();
-                if ( contents1.length==contents2.length )
-                {
-                    for ( int i=0;i<contents1.length;i++ )
-                        if ( contents1[i]!=contents2[i] )
-                            return false;
-                    return true;
-                }
-                else
-                    return false;
-            }
-            else
-                return false;
+            FileItem fi = (FileItem) other;
+            return payload.contentEquals( fi.payload );
         }
-        catch ( Exception e )
-        {
+        else
             return false;
-        }
+    }
+    /**
+     * Get a hash code consistent with equals
+     * @return a hash of the contents
+     */
+    public int hashCode()
+    {
+        return payload.contentHash();
     }
     /**
      * Make the path from the relPath (often empty) and the file name+suffix
@@ -181,42 +173,12 @@ class FileItem
             relPath += "/";
         return relPath+name;
     }
-    /**
-     * Create a temporary file when we have a file in an existing directory
-     * @param parent the place to store it temporarily
-     * @param relPath the relative path from the folder item
-     * @param file the original file to copy
-     * @param format the format of the file
-     * @throws Exception 
-     */
-    public FileItem( File parent, String relPath, File file, Format format ) 
-        throws Exception
-    {
-        // copy the file to temporary store
-        this.path = makePath( relPath, file.getName() );
-        this.format = format;
-        byte[] content = readFile( file );
-        int index = file.getName().lastIndexOf(".");
-        suffix = "";
-        if ( index != -1 )
-        {
-            suffix = file.getName().substring(index);
-            this.name = file.getName().substring(0,index);
-        }
-        else
-            this.name = file.getName();
-        cache = File.createTempFile( "ANTH", suffix, parent );
-        writeFile( cache, content );
-        file.delete();
-    }
     /**
      * Save the file in a new parent directory
      * @param dst the new destination dir (not temporary)
      */
     public void save( File dst ) throws Exception
     {
-        File newLoc = new File( dst, path );
-        byte[] content = readFile( cache );
-        writeFile( newLoc, content );
+        payload.writeTo( new File(dst, path) );
     }
 }
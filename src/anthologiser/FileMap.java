@@ -13,20 +13,41 @@
  */
 package anthologiser;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.File;
 import java.util.Set;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * A collection of files that can be allocated to a set of sub-directories
+ * A collection of files that can be allocated to a set of sub-directories.
+ * Several sources may add poems at once, so updates to any one work must 
+ * be made while holding its lock stripe.
  * @author desmond
  */
-public class FileMap extends HashMap<String,MultiFormatDir>
+public class FileMap extends ConcurrentHashMap<String,MultiFormatDir>
 {
     static int MAX_LEN = 8;
+    static int NUM_STRIPES = 64;
+    /** shards in each level: two hex digits of the key's hash */
+    static final int SHARD_FANOUT = 256;
     File tempDir;
+    /** locks guarding the works, shared between keys by hash */
+    Object[] stripes;
+    /** works emptied by removeVersion but not yet deleted from disk */
+    ConcurrentHashMap<String,MultiFormatDir> retired;
+    /** number of works to save at once */
+    int saveThreads;
     /**
-     * Read a directory and store all its contents
+     * Index the works already in a directory. They are left where they 
+     * are until a source adds to them or they have to move.
      * @param folder the folder to recurse into
      */
     public FileMap( File folder ) throws Exception
@@ -39,8 +60,31 @@ public class FileMap extends HashMap<String,MultiFormatDir>
         if ( tempDir.exists() )
             Utils.removeDir( tempDir );
         tempDir.mkdir();
+        retired = new ConcurrentHashMap<String,MultiFormatDir>();
+        saveThreads = 1;
+        stripes = new Object[NUM_STRIPES];
+        for ( int i=0;i<stripes.length;i++ )
+            stripes[i] = new Object();
         scanDir( folder, "" );
     }
+    /**
+     * Get the lock that guards a work and its MultiFormatDir
+     * @param key the work's key in this map
+     * @return the lock to synchronize on
+     */
+    Object lockFor( String key )
+    {
+        return stripes[(key.hashCode()&0x7fffffff)%stripes.length];
+    }
+    /**
+     * Set how many works to save at once. One suits a spinning disk; 
+     * an SSD keeps up with more.
+     * @param n the number of threads writing works
+     */
+    void setSaveThreads( int n )
+    {
+        saveThreads = n;
+    }
     /**
      * Get the temporary directory so other classes can write files to it
      * @return the temporary directory
@@ -50,7 +94,7 @@ public class FileMap extends HashMap<String,MultiFormatDir>
         return tempDir;
     }
     /**
-     * Scan an existing directory for folders
+     * Scan an existing directory for work folders
      * @param folder the folder we are to scan
      * @param relPath the relativePath to the item
      * @throws Exception 
@@ -64,20 +108,14 @@ public class FileMap extends HashMap<String,MultiFormatDir>
             {
                 String fname = files[i].getName();
                 if ( fname.startsWith("%") )
-                {
-                    ingest( files[i], relPath);
-                    Utils.removeDir( files[i] );
-                }
+                    ingest( files[i], relPath );
                 else
                 {
                     String newRelPath = (relPath.length()>0)?relPath + File.separator 
                         + files[i].getName():files[i].getName();
                     scanDir( files[i], newRelPath );
-                    Utils.removeDir( files[i] );
                 }
             }
-            else
-                files[i].delete();
             // ignore files
         }
     }
@@ -87,11 +125,50 @@ public class FileMap extends HashMap<String,MultiFormatDir>
      */
     void ingest( File dir, String relPath ) throws Exception
     {
-        String name = (relPath.length()>0)?relPath+File.separator+dir.getName():dir.getName();
-        File dstDir = new File( tempDir, name );
-        // make relpath a property of multiformatdir
-        MultiFormatDir mfd = new MultiFormatDir( dstDir, dir, relPath );
-        put( name, mfd );
+        File tempLoc = new File( tempDir, dir.getName() );
+        // key by work so that addPoem finds it whatever subfolder it was in
+        MultiFormatDir mfd = new MultiFormatDir( tempLoc, dir, relPath );
+        put( dir.getName(), mfd );
+    }
+    /**
+     * Remove a version of a work, and the work itself if that was its 
+     * only version. If unchanged files are being kept the work's folder
+     * stays on disk until save, in case its versions come back.
+     * @param key the work's key
+     * @param file the name of the version's file
+     * @throws Exception 
+     */
+    void removeVersion( String key, String file ) throws Exception
+    {
+        synchronized ( lockFor(key) )
+        {
+            MultiFormatDir mfd = get( key );
+            if ( mfd != null )
+            {
+                mfd.removeFile( file );
+                if ( mfd.isEmpty() )
+                {
+                    remove( key );
+                    if ( FileIO.skipUnchanged )
+                        retired.put( key, mfd );
+                    else
+                        mfd.delete();
+                }
+            }
+        }
+    }
+    /**
+     * Bring back a work removed earlier in the run. Call holding the 
+     * key's lock.
+     * @param key the work's key
+     * @return the work, back in the map, or null if it wasn't removed
+     */
+    MultiFormatDir revive( String key )
+    {
+        MultiFormatDir mfd = retired.remove( key );
+        if ( mfd != null )
+            put( key, mfd );
+        return mfd;
     }
     /**
      * Compute a unique prefix for one string compared to another: as 
@@ -133,25 +210,102 @@ public class FileMap extends HashMap<String,MultiFormatDir>
         }
         return sb.toString();
     }
+    /**
+     * Sort keys ignoring punctuation. Each key's collation key is made
+     * once; keys that collate the same fall back to plain string order.
+     * @param keys the keys to sort
+     * @return the sorted keys
+     */
+    static String[] sortIgnoringPunct( String[] keys )
+    {
+        PunctIgnoreString[] collated = new PunctIgnoreString[keys.length];
+        for ( int i=0;i<keys.length;i++ )
+            collated[i] = new PunctIgnoreString( keys[i] );
+        Arrays.sort( collated, new Comparator<PunctIgnoreString>() {
+            public int compare( PunctIgnoreString a, PunctIgnoreString b )
+            {
+                int res = a.compareTo( b );
+                return (res!=0)?res:a.str.compareTo(b.str);
+            }
+        });
+        for ( int i=0;i<keys.length;i++ )
+            keys[i] = collated[i].str;
+        return keys;
+    }
+    /**
+     * Get the shard a work belongs in. It depends only on the work's key,
+     * so works never move as others come and go.
+     * @param key the work's key
+     * @param depth the number of levels of shards, each 256 wide
+     * @return the shard's path relative to the destination folder
+     * @throws Exception 
+     */
+    static String shardFolder( String key, int depth ) throws Exception
+    {
+        String hash = Utils.hashString( key );
+        StringBuilder sb = new StringBuilder();
+        for ( int i=0;i<depth;i++ )
+        {
+            if ( i > 0 )
+                sb.append( "/" );
+            sb.append( " " ).append( hash, 2*i, 2*i+2 );
+        }
+        return sb.toString();
+    }
+    /**
+     * Get the folder a work will be saved in when that depends only on 
+     * its key, as it does unless works go in subfolders by range
+     * @param dst the destination folder
+     * @param key the work's key
+     * @param shardDepth the levels of shards or 0 if there are none
+     * @return the folder to save the work in
+     * @throws Exception 
+     */
+    static File fixedFolder( File dst, String key, int shardDepth ) 
+        throws Exception
+    {
+        return ( shardDepth > 0 ) 
+            ? new File( dst, shardFolder(key,shardDepth) ) : dst;
+    }
     /**
      * Save an entire filemap
      * @param dst the destination folder
-     * @param anthology the anthology that needs our subdirectories
+     * @param anthologies the anthologies that need our subdirectories, 
+     * keyed by the simple names of their source files
      * @param usingSubFolders true if we split up into subfolders
+     * @param shardDepth if more than 0 put each work in the shard given
+     * by its key's hash, this many levels deep, instead of into subfolders
+     * by range
      */
-    public void save( File dst, Anthology anthology, boolean usingSubFolders ) 
+    public void save( File dst, HashMap<String,Anthology> anthologies, 
+        boolean usingSubFolders, int shardDepth ) 
         throws Exception
     {
         int numBuckets = 2*(int)Math.round(Math.log(size()));
-        if ( numBuckets != 0 )
+        // a single work still needs a bucket
+        if ( numBuckets == 0 && size() > 0 )
+            numBuckets = 1;
+        ArrayList<String> order = new ArrayList<String>( size() );
+        ArrayList<String> subFolders = new ArrayList<String>( size() );
+        ArrayList<File> folders = new ArrayList<File>( size() );
+        if ( shardDepth > 0 )
+        {
+            String[] array = sortIgnoringPunct( keySet().toArray(
+                new String[size()]) );
+            for ( int i=0;i<array.length;i++ )
+            {
+                String shard = shardFolder( array[i], shardDepth );
+                order.add( array[i] );
+                subFolders.add( shard );
+                folders.add( new File(dst,shard) );
+            }
+        }
+        else if ( numBuckets != 0 )
         {
             int bucketSize = (size()/numBuckets)+1;
             String prev = null;
             Set<String> keys = keySet();
-            String[] array = new String[size()];
-            keys.toArray( array );
-            // need to sort ignoring punctuation
-            Arrays.sort(array);
+            String[] array = sortIgnoringPunct( keys.toArray(new String[size()]) );
             String subFolder = "";
             for ( int i=0;i<array.length;i+=bucketSize )
             {
@@ -167,31 +321,142 @@ public class FileMap extends HashMap<String,MultiFormatDir>
                     subFolder = " "+leading+"-"+trailing;
                     dstFolder = new File(dst,subFolder);
                 }
-                boolean success = true;
-                if ( !dstFolder.exists() )
-                    success = dstFolder.mkdir();
-                if ( success )
+                for ( int j=i;j<i+bucketSize&&j<array.length;j++ )
                 {
-                    for ( int j=i;j<i+bucketSize&&j<array.length;j++ )
-                    {
-                        MultiFormatDir mfd = get( array[j] );
-                        mfd.save( dstFolder, array[j] );
-                        String srcName = mfd.getSrcName();
-                        if ( srcName!=null && srcName.equals(anthology.name) )
+                    order.add( array[j] );
+                    subFolders.add( (usingSubFolders)?subFolder:null );
+                    folders.add( dstFolder );
+                }
+            }
+        }
+        else
+            System.out.println("No poems to save");
+        makeFolders( folders );
+        saveWorks( order, folders );
+        for ( int i=0;i<order.size();i++ )
+            addToAnthologies( order.get(i), subFolders.get(i), anthologies );
+        Iterator<MultiFormatDir> iter = retired.values().iterator();
+        while ( iter.hasNext() )
+            iter.next().delete();
+        retired.clear();
+        if ( usingSubFolders || shardDepth > 0 )
+            removeEmptySubFolders( dst );
+    }
+    /**
+     * Create the folders works are to be saved in, before any are saved,
+     * so that no two saves race to create the same one
+     * @param folders the folder for each work, often repeated
+     * @throws Exception 
+     */
+    private void makeFolders( ArrayList<File> folders ) throws Exception
+    {
+        File last = null;
+        for ( int i=0;i<folders.size();i++ )
+        {
+            File dstFolder = folders.get( i );
+            if ( !dstFolder.equals(last) && !dstFolder.isDirectory() 
+                && !dstFolder.mkdirs() )
+                throw new Exception("Couldn't create folder "
+                    +dstFolder.getPath());
+            last = dstFolder;
+        }
+    }
+    /**
+     * Save works, several at once if saveThreads allows
+     * @param order the works' keys
+     * @param folders the folder to save each one in
+     * @throws Exception 
+     */
+    private void saveWorks( final ArrayList<String> order, 
+        final ArrayList<File> folders ) throws Exception
+    {
+        if ( saveThreads <= 1 || order.size() <= 1 )
+        {
+            for ( int i=0;i<order.size();i++ )
+                get( order.get(i) ).save( folders.get(i), order.get(i) );
+        }
+        else
+        {
+            ExecutorService pool = Executors.newFixedThreadPool( 
+                Math.min(saveThreads,order.size()) );
+            try
+            {
+                ArrayList<Future<Object>> results 
+                    = new ArrayList<Future<Object>>( order.size() );
+                for ( int i=0;i<order.size();i++ )
+                {
+                    final int index = i;
+                    results.add( pool.submit(new Callable<Object>() {
+                        public Object call() throws Exception
                         {
-                            String poem = array[j].substring(1);
-                            String base = Utils.makeDocID(anthology.getLinkBase());
-                            String path = (usingSubFolders)?base+subFolder+"/"+poem:base+poem;
-                            anthology.addItem( mfd.getTitle(), path );
+                            String key = order.get( index );
+                            get( key ).save( folders.get(index), key );
+                            return null;
                         }
+                    }) );
+                }
+                for ( int i=0;i<results.size();i++ )
+                {
+                    try
+                    {
+                        results.get(i).get();
+                    }
+                    catch ( ExecutionException e )
+                    {
+                        if ( e.getCause() instanceof Exception )
+                            throw (Exception)e.getCause();
+                        else
+                            throw e;
                     }
                 }
-                else
-                    throw new Exception("Couldn't create folder "
-                        +dstFolder.getPath());
+            }
+            finally
+            {
+                pool.shutdownNow();
+            }
+        }
+    }
+    /**
+     * Add a saved work to the anthologies of its sources
+     * @param key the work's key
+     * @param subFolder its path from the destination folder or null
+     * @param anthologies the anthologies keyed by source name
+     * @throws Exception 
+     */
+    private void addToAnthologies( String key, String subFolder, 
+        HashMap<String,Anthology> anthologies ) throws Exception
+    {
+        MultiFormatDir mfd = get( key );
+        Iterator<String> iter = mfd.getSrcNames().iterator();
+        while ( iter.hasNext() )
+        {
+            Anthology anthology = anthologies.get( iter.next() );
+            if ( anthology != null )
+            {
+                String poem = key.substring(1);
+                String base = Utils.makeDocID(anthology.getLinkBase());
+                String path = (subFolder!=null)?base+subFolder+"/"+poem:base+poem;
+                anthology.addItem( mfd.getTitle(), path );
+            }
+        }
+    }
+    /**
+     * Remove subfolders that have had all their works moved elsewhere
+     * @param dst the destination folder
+     */
+    void removeEmptySubFolders( File dst )
+    {
+        File[] files = dst.listFiles();
+        for ( int i=0;i<files.length;i++ )
+        {
+            if ( files[i].isDirectory() && files[i].getName().startsWith(" ") )
+            {
+                // shards may hold shards
+                removeEmptySubFolders( files[i] );
+                String[] contents = files[i].list();
+                if ( contents != null && contents.length == 0 )
+                    files[i].delete();
             }
         }
-        else
-            System.out.println("No poems to save");
     }
 }
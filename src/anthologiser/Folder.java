@@ -14,15 +14,14 @@ abstract class Folder
 {
     String configName;
     JSONFileItem config;
-    /** the src format directory to read */
+    /** the format directory */
     File dst;
     /**
      * Called by factory method
-     * @param src the folder we are reading whose name is this Format
-     * @param relPath the relative path from the MVD folder to the format folder
+     * @param dst the folder whose name is this Format, created if need be
      * @throws Exception 
      */
-    protected Folder( File src, File dst ) throws Exception
+    protected Folder( File dst ) throws Exception
     {
         this.dst = dst;
         configName = "config.conf";
@@ -33,7 +32,6 @@ abstract class Folder
                 throw new Exception("Couldn't create type folder");
         }
     }
-    protected abstract void internalise( File dir ) throws Exception;
     /**
      * Externalise the folder's content
      * @throws Exception 
@@ -49,8 +47,9 @@ abstract class Folder
     {
         if ( config == null )
         {
-            File file = new File( dst, configName );
-            config = new JSONFileItem( dst, "", file );
+            int pos = configName.lastIndexOf(".");
+            config = new JSONFileItem( dst, "", new byte[0], 
+                configName.substring(0,pos), configName.substring(pos) );
         }
         config.add( key, value );
     }
@@ -73,8 +72,52 @@ abstract class Folder
      * @param hVersion the individual version ID
      * @param suffix the suffix without the dot
      */
-    protected abstract void add( byte[] data, String relPath, String name, 
+    protected abstract void add( XMLWriter data, String relPath, String name, 
         String hVersion, String suffix ) throws Exception;
+    /**
+     * Hand files not yet written to a WriteBehind. Only folders that
+     * hold their files until they are saved need to.
+     * @param dir the work's folder on disk
+     * @param wb the writes in progress
+     * @throws Exception 
+     */
+    protected void writeAhead( File dir, WriteBehind wb ) throws Exception
+    {
+    }
+    /**
+     * Remove a file from the folder if it is there
+     * @param name the name of the file including any suffix
+     * @return true if it was removed
+     */
+    boolean remove( String name )
+    {
+        File f = new File( dst, name );
+        return f.isFile() && FileIO.delete( f );
+    }
+    /**
+     * Get the digest of a file's content, if the folder keeps one
+     * @param path the file's path relative to the folder
+     * @return its SHA-1 digest in hex or null if unknown
+     */
+    String getDigest( String path )
+    {
+        return null;
+    }
+    /**
+     * Does the folder hold no files except its config?
+     * @return true if it has no content
+     */
+    boolean isEmpty()
+    {
+        File[] files = dst.listFiles();
+        if ( files != null )
+        {
+            for ( int i=0;i<files.length;i++ )
+                if ( !files[i].getName().equals(configName) )
+                    return false;
+        }
+        return true;
+    }
     /**
      * Get our intrinsic format
      * @return the Format
@@ -20,19 +20,19 @@ import java.io.File;
  */
 public class FolderFactory 
 {
-    static Folder makeFolder( File src, File dst, Format format ) throws Exception
+    static Folder makeFolder( File dst, Format format ) throws Exception
     {
         dst = new File( dst, format.toString() );
         switch ( format )
         {
             case MVD:
-                return new MVDFolder( src, dst );
+                return new MVDFolder( dst );
             case TEXT:
-                return new TextFolder( src, dst );
+                return new TextFolder( dst );
             case XML:
-                return new XMLFolder( src, dst );
+                return new XMLFolder( dst );
             case HTML:
-                return new XMLFolder( src, dst );
+                return new XMLFolder( dst );
         }
         // only used if format is null
         return null;
@@ -0,0 +1,45 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.DataAmount;
+
+/**
+ * JFR event: a format folder of a work written out.
+ * @author desmond
+ */
+@Name("anthologiser.FolderWrite")
+@Label("Folder Write")
+@Category("Anthologiser")
+@Description("A format folder of a work written out")
+public class FolderWriteEvent extends Event
+{
+    @Label("Work Key")
+    @Description("The work's folder name")
+    String workKey;
+    @Label("Format")
+    @Description("The folder's format")
+    String format;
+    @Label("Files")
+    @Description("The number of files written")
+    int files;
+    @Label("Bytes")
+    @DataAmount
+    @Description("The number of bytes written")
+    long bytes;
+}
@@ -5,7 +5,6 @@
 package anthologiser;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import calliope.json.JSONDocument;
 
 /**
@@ -15,15 +14,11 @@ import calliope.json.JSONDocument;
 public class JSONFileItem extends FileItem
 {
     JSONDocument jdoc;
-    JSONFileItem( File parent, String relPath, File file ) throws Exception
-    {
-        super( parent, relPath, file, Format.JSON );
-        parse();
-    }
     JSONFileItem( File parent, String relPath, byte[] contents, String name, 
         String suffix ) throws Exception
     {
         super( parent, relPath, contents, name, suffix );
+        format = Format.JSON;
         parse();
     }
     void add( String key, String value ) throws Exception
@@ -51,14 +46,20 @@ public class JSONFileItem extends FileItem
         {
         }
     }
+    /**
+     * Get the content as JSON with its keys in order
+     * @return the JSON text or an empty object if there is none
+     */
+    public String toString()
+    {
+        return JSONWriter.toJSON( (jdoc!=null)?jdoc:new JSONDocument() );
+    }
     void externalise( File dir, String name ) throws Exception
     {
         File out = new File(dir,name);
         if ( !out.exists() )
             out.createNewFile();
-        FileOutputStream fos = new FileOutputStream( out );
-        fos.write( jdoc.toString().getBytes("UTF-8") );
-        fos.close();
+        FileIO.write( out, JSONWriter.toJSON(jdoc).getBytes("UTF-8") );
     }
 }
 
@@ -0,0 +1,171 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serialise JSON documents with their keys sorted, so that the same
+ * content always gives the same bytes whatever order it was built in.
+ * JSONDocument.toString follows HashMap order, which doesn't. Values can
+ * be laid out over several lines or packed onto one.
+ * @author desmond
+ */
+public class JSONWriter
+{
+    /**
+     * Convert a document or other JSON value to a string
+     * @param value a Map, List, String, Number, Boolean or null
+     * @return the JSON text
+     */
+    static String toJSON( Object value )
+    {
+        StringBuilder sb = new StringBuilder();
+        write( sb, value, "" );
+        sb.append( "\n" );
+        return sb.toString();
+    }
+    /**
+     * Convert a value to JSON on a single line, for line-based files
+     * @param value a Map, List, String, Number, Boolean or null
+     * @return the JSON text without a line ending
+     */
+    static String toJSONLine( Object value )
+    {
+        StringBuilder sb = new StringBuilder();
+        write( sb, value, null );
+        return sb.toString();
+    }
+    /**
+     * Write one value
+     * @param sb the buffer to write to
+     * @param value the value
+     * @param indent the indent of the line it starts on or null for none
+     */
+    private static void write( StringBuilder sb, Object value, String indent )
+    {
+        if ( value instanceof Map )
+        {
+            Map map = (Map)value;
+            Object[] keys = map.keySet().toArray();
+            String[] sorted = new String[keys.length];
+            for ( int i=0;i<keys.length;i++ )
+                sorted[i] = keys[i].toString();
+            Arrays.sort( sorted );
+            if ( sorted.length == 0 )
+                sb.append( "{}" );
+            else if ( indent == null )
+            {
+                sb.append( "{" );
+                for ( int i=0;i<sorted.length;i++ )
+                {
+                    quote( sb, sorted[i] );
+                    sb.append( ":" );
+                    write( sb, map.get(sorted[i]), null );
+                    if ( i<sorted.length-1 )
+                        sb.append( "," );
+                }
+                sb.append( "}" );
+            }
+            else
+            {
+                String inner = indent+"  ";
+                sb.append( "{\n" );
+                for ( int i=0;i<sorted.length;i++ )
+                {
+                    sb.append( inner );
+                    quote( sb, sorted[i] );
+                    sb.append( ": " );
+                    write( sb, map.get(sorted[i]), inner );
+                    sb.append( (i<sorted.length-1)?",\n":"\n" );
+                }
+                sb.append( indent ).append( "}" );
+            }
+        }
+        else if ( value instanceof List )
+        {
+            List list = (List)value;
+            if ( list.isEmpty() )
+                sb.append( "[]" );
+            else if ( indent == null )
+            {
+                sb.append( "[" );
+                for ( int i=0;i<list.size();i++ )
+                {
+                    write( sb, list.get(i), null );
+                    if ( i<list.size()-1 )
+                        sb.append( "," );
+                }
+                sb.append( "]" );
+            }
+            else
+            {
+                String inner = indent+"  ";
+                sb.append( "[\n" );
+                for ( int i=0;i<list.size();i++ )
+                {
+                    sb.append( inner );
+                    write( sb, list.get(i), inner );
+                    sb.append( (i<list.size()-1)?",\n":"\n" );
+                }
+                sb.append( indent ).append( "]" );
+            }
+        }
+        else if ( value instanceof Number || value instanceof Boolean )
+            sb.append( value.toString() );
+        else if ( value == null )
+            sb.append( "null" );
+        else
+            quote( sb, value.toString() );
+    }
+    /**
+     * Write a string as a JSON string literal
+     * @param sb the buffer to write to
+     * @param str the unescaped string
+     */
+    private static void quote( StringBuilder sb, String str )
+    {
+        sb.append( '"' );
+        for ( int i=0;i<str.length();i++ )
+        {
+            char c = str.charAt( i );
+            switch ( c )
+            {
+                case '"':
+                    sb.append( "\\\"" );
+                    break;
+                case '\\':
+                    sb.append( "\\\\" );
+                    break;
+                case '\n':
+                    sb.append( "\\n" );
+                    break;
+                case '\r':
+                    sb.append( "\\r" );
+                    break;
+                case '\t':
+                    sb.append( "\\t" );
+                    break;
+                default:
+                    if ( c < 0x20 )
+                        sb.append( String.format("\\u%04x",(int)c) );
+                    else
+                        sb.append( c );
+                    break;
+            }
+        }
+        sb.append( '"' );
+    }
+}
@@ -16,22 +16,21 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Iterator;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 /**
  * Represent an MVD directory and create/read its structure on disk
  * @author desmond
  */
 public class MVDFolder extends Folder
 {
-    HashMap<String,String> corcodes;
-    String cortex;
-    MVDFolder( File src, File dst ) throws Exception
+    /** corcode files in our temporary dir keyed by name */
+    HashMap<String,File> corcodes;
+    /** the cortex file in our temporary dir or null */
+    File cortex;
+    MVDFolder( File dst ) throws Exception
     {
-        super( src, dst );
-        corcodes = new HashMap<String,String>();
+        super( dst );
+        corcodes = new HashMap<String,File>();
         configName = "cortex.conf";
-        internalise( src );
     }
     /**
      * Write an MVD folder and its contents to disk
@@ -40,12 +39,15 @@ public class MVDFolder extends Folder
      */
     public void externalise( File dir ) throws Exception
     {
+        FolderWriteEvent event = new FolderWriteEvent();
+        event.begin();
         File mvdDir = new File( dir, Format.MVD.toString() );
         if ( !mvdDir.exists() )
             mvdDir.mkdir();
         String config = composeConfig();
         writeFile( mvdDir, configName, config, null );
-        writeFile( mvdDir, "cortex.mvd", cortex, "UTF-8" );
+        if ( cortex != null )
+            FileIO.copy( cortex, new File(mvdDir,"cortex.mvd") );
         File corcodeDir = new File( mvdDir, "corcode" );
         if ( !corcodeDir.exists() )
             corcodeDir.mkdir();
@@ -54,7 +56,23 @@ public class MVDFolder extends Folder
         while ( iter.hasNext() )
         {
             String key = iter.next();
-            writeFile( corcodeDir, key, corcodes.get(key), "UTF-8" );
+            FileIO.copy( corcodes.get(key), new File(corcodeDir,key) );
+        }
+        if ( event.shouldCommit() )
+        {
+            event.workKey = dir.getName();
+            event.format = Format.MVD.toString();
+            event.files = corcodes.size();
+            event.bytes = 0;
+            if ( cortex != null )
+            {
+                event.files++;
+                event.bytes = cortex.length();
+            }
+            iter = keys.iterator();
+            while ( iter.hasNext() )
+                event.bytes += corcodes.get(iter.next()).length();
+            event.commit();
         }
     }
     /**
@@ -69,61 +87,50 @@ public class MVDFolder extends Folder
     {
         if ( content != null )
         {
-            File dst = new File( parent, name );
-            FileOutputStream fos = new FileOutputStream( dst );
             byte[] data = (enc==null)?content.getBytes():content.getBytes(enc);
-            fos.write( data );
-            fos.close();
+            FileIO.write( new File(parent,name), data );
         }
     }
     /**
-     * Read a file's content
-     * @param file the directory to write it in
-     * @param enc the file's encoding
-     * @return the content as a String encoded in enc
+     * Get the temporary corcode directory, creating it if needed
+     * @return the directory
+     * @throws Exception 
      */
-    String readFile( File file, String enc ) throws Exception
+    private File corcodeDir() throws Exception
     {
-        int len = (int)file.length();
-        FileInputStream fis = new FileInputStream( file );
-        byte[] data = new byte[len];
-        fis.read( data );
-        String str = (enc==null)?new String(data):new String(data,enc);
-        fis.close();
-        return str;
+        File dir = new File( dst, "corcode" );
+        if ( !dir.exists() && !dir.mkdirs() )
+            throw new Exception("Couldn't create directory "+dir.getPath());
+        return dir;
     }
     /**
-     * @throws Exception 
+     * Versions can't be taken out of an MVD
+     * @param name the name of the file
+     * @return false
      */
-    public void internalise( File dir ) throws Exception
+    boolean remove( String name )
     {
-        File[] contents = dir.listFiles();
-        for ( int i=0;i<contents.length;i++ )
-        {
-            if ( contents[i].getName().equals("cortex.mvd") )
-            {
-                cortex = readFile(contents[i], null);
-            }
-            else if ( contents[i].getName().endsWith(".conf") )
-            {
-                config = new JSONFileItem( dir, contents[i].getName(), 
-                    contents[i] );
-            }
-            else if ( contents[i].isDirectory() 
-                && contents[i].getName().equals("corcode") )
-            {
-                File[] files = contents[i].listFiles();
-                for ( int j=0;j<files.length;j++ )
-                {
-                    String corcode = readFile( files[j], "UTF-8" );
-                    corcodes.put( files[j].getName(), corcode );
-                }
-            }
-        }
+        return false;
     }
-    void addCorCode( String name, String corcode )
+    /**
+     * Does the folder hold no MVD?
+     * @return true if it has no content
+     */
+    boolean isEmpty()
+    {
+        return cortex == null && corcodes.isEmpty();
+    }
+    /**
+     * Add a corcode to the MVD
+     * @param name the corcode's file name
+     * @param corcode its content
+     * @throws Exception 
+     */
+    void addCorCode( String name, String corcode ) throws Exception
     {
-        corcodes.put( name, corcode );
+        File file = new File( corcodeDir(), name );
+        FileIO.write( file, corcode.getBytes("UTF-8") );
+        corcodes.put( name, file );
     }
     /**
      * Add a file to the folder
@@ -132,7 +139,7 @@ public class MVDFolder extends Folder
      * @param name the name of the file minus the suffix
      * @param suffix the suffix without the dot
      */
-    protected void add( byte[] data, String relPath, String name, 
+    protected void add( XMLWriter data, String relPath, String name, 
         String hVersion, String suffix ) throws Exception
     {
         boolean success = true;
@@ -153,11 +160,7 @@ public class MVDFolder extends Folder
                 if ( !success && f.exists() )
                     System.out.println("File already exists!");
                 if ( success )
-                {
-                    FileOutputStream fos = new FileOutputStream( f );
-                    fos.write( data );
-                    fos.close();
-                }
+                    data.writeTo( f );
                 else
                     throw new Exception("Couldn't create file "+f.getName());
             }
@@ -0,0 +1,254 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters for each phase of a run. The counters are static
+ * so the I/O code can bump them from any thread without being handed a
+ * Metrics object; phases are started and ended by the main thread.
+ * @author desmond
+ */
+public class Metrics
+{
+    /** indices into the counters */
+    static final int BYTES_READ = 0;
+    static final int BYTES_WRITTEN = 1;
+    static final int FILES_WRITTEN = 2;
+    static final int FILES_DELETED = 3;
+    static final int POEMS = 4;
+    static final int VERSIONS = 5;
+    static final int FILES_SKIPPED = 6;
+    static final int FILES_READ = 7;
+    static final String[] NAMES = {"bytesRead","bytesWritten","filesWritten",
+        "filesDeleted","poems","versions","filesSkipped","filesRead"};
+    static AtomicLong[] counters;
+    static
+    {
+        counters = new AtomicLong[NAMES.length];
+        for ( int i=0;i<counters.length;i++ )
+            counters[i] = new AtomicLong();
+    }
+    /** the phases so far in order */
+    ArrayList<Phase> phases;
+    /** the phase in progress or null */
+    Phase current;
+    /**
+     * One named stretch of the run
+     */
+    static class Phase
+    {
+        String name;
+        long start;
+        long millis;
+        long[] counts;
+        long peakHeap;
+        Phase( String name )
+        {
+            this.name = name;
+            this.counts = new long[NAMES.length];
+        }
+    }
+    public Metrics()
+    {
+        phases = new ArrayList<Phase>();
+    }
+    /**
+     * Count a file read
+     * @param n the number of bytes read from it
+     */
+    static void read( long n )
+    {
+        counters[FILES_READ].incrementAndGet();
+        counters[BYTES_READ].addAndGet( n );
+    }
+    /**
+     * Count a file written
+     * @param n the number of bytes written to it
+     */
+    static void wrote( long n )
+    {
+        counters[FILES_WRITTEN].incrementAndGet();
+        counters[BYTES_WRITTEN].addAndGet( n );
+    }
+    /**
+     * Count a file left alone because its content hadn't changed
+     */
+    static void skipped()
+    {
+        counters[FILES_SKIPPED].incrementAndGet();
+    }
+    /**
+     * Count a file deleted
+     */
+    static void deleted()
+    {
+        counters[FILES_DELETED].incrementAndGet();
+    }
+    /**
+     * Count a poem split from a source
+     */
+    static void poem()
+    {
+        counters[POEMS].incrementAndGet();
+    }
+    /**
+     * Count a version added to a work
+     */
+    static void version()
+    {
+        counters[VERSIONS].incrementAndGet();
+    }
+    /**
+     * Get the heap memory pools
+     * @return a list of pools, possibly empty
+     */
+    private static ArrayList<MemoryPoolMXBean> heapPools()
+    {
+        ArrayList<MemoryPoolMXBean> heap = new ArrayList<MemoryPoolMXBean>();
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        for ( int i=0;i<pools.size();i++ )
+            if ( pools.get(i).getType()==MemoryType.HEAP )
+                heap.add( pools.get(i) );
+        return heap;
+    }
+    /**
+     * End the current phase, if any, and start another
+     * @param name the name of the new phase
+     */
+    void start( String name )
+    {
+        end();
+        current = new Phase( name );
+        ArrayList<MemoryPoolMXBean> pools = heapPools();
+        for ( int i=0;i<pools.size();i++ )
+            pools.get(i).resetPeakUsage();
+        for ( int i=0;i<counters.length;i++ )
+            current.counts[i] = counters[i].get();
+        current.start = System.nanoTime();
+    }
+    /**
+     * End the current phase, if any
+     */
+    void end()
+    {
+        if ( current != null )
+        {
+            current.millis = (System.nanoTime()-current.start)/1000000;
+            for ( int i=0;i<counters.length;i++ )
+                current.counts[i] = counters[i].get()-current.counts[i];
+            ArrayList<MemoryPoolMXBean> pools = heapPools();
+            for ( int i=0;i<pools.size();i++ )
+                current.peakHeap += pools.get(i).getPeakUsage().getUsed();
+            phases.add( current );
+            current = null;
+        }
+    }
+    /**
+     * Add up all the phases
+     * @return a phase covering the whole run
+     */
+    Phase total()
+    {
+        Phase all = new Phase( "total" );
+        for ( int i=0;i<phases.size();i++ )
+        {
+            Phase p = phases.get( i );
+            all.millis += p.millis;
+            for ( int j=0;j<NAMES.length;j++ )
+                all.counts[j] += p.counts[j];
+            all.peakHeap = Math.max( all.peakHeap, p.peakHeap );
+        }
+        return all;
+    }
+    /**
+     * Print a line for one phase
+     * @param out the stream to print to
+     * @param p the phase
+     */
+    private static void printPhase( PrintStream out, Phase p )
+    {
+        out.println( String.format(Locale.ROOT,
+            "%-12s %8d %10.1f %10.1f %7d %7d %7d %7d %7d %8d %8.1f", p.name,
+            p.millis, p.counts[BYTES_READ]/1024.0,
+            p.counts[BYTES_WRITTEN]/1024.0, p.counts[FILES_READ],
+            p.counts[FILES_WRITTEN],
+            p.counts[FILES_SKIPPED], p.counts[FILES_DELETED], p.counts[POEMS], p.counts[VERSIONS],
+            p.peakHeap/1048576.0) );
+    }
+    /**
+     * Print a short table of the phases
+     * @param out the stream to print to
+     */
+    void printSummary( PrintStream out )
+    {
+        end();
+        out.println( String.format(Locale.ROOT,
+            "%-12s %8s %10s %10s %7s %7s %7s %7s %7s %8s %8s", "phase", "ms",
+            "read KB", "write KB", "read", "written", "skipped", "deleted", "poems",
+            "versions", "heap MB") );
+        for ( int i=0;i<phases.size();i++ )
+            printPhase( out, phases.get(i) );
+        printPhase( out, total() );
+    }
+    /**
+     * Format one phase as a JSON object
+     * @param sb the buffer to add it to
+     * @param p the phase
+     * @param indent the indent before each field
+     */
+    private static void phaseToJSON( StringBuilder sb, Phase p,
+        String indent )
+    {
+        sb.append("{\n");
+        sb.append(indent).append("\"name\": \"").append(p.name).append("\",\n");
+        sb.append(indent).append("\"millis\": ").append(p.millis).append(",\n");
+        for ( int i=0;i<NAMES.length;i++ )
+        {
+            sb.append(indent).append("\"").append(NAMES[i]).append("\": ");
+            sb.append(p.counts[i]).append(",\n");
+        }
+        sb.append(indent).append("\"peakHeapBytes\": ").append(p.peakHeap);
+        sb.append("\n");
+        sb.append(indent.substring(2)).append("}");
+    }
+    /**
+     * Write the phases and totals as JSON
+     * @param dst the file to write
+     * @throws Exception
+     */
+    void externalise( File dst ) throws Exception
+    {
+        end();
+        StringBuilder sb = new StringBuilder("{\n  \"phases\": [\n");
+        for ( int i=0;i<phases.size();i++ )
+        {
+            sb.append("    ");
+            phaseToJSON( sb, phases.get(i), "      " );
+            sb.append( (i<phases.size()-1)?",\n":"\n" );
+        }
+        sb.append("  ],\n  \"total\": ");
+        phaseToJSON( sb, total(), "    " );
+        sb.append("\n}\n");
+        FileIO.write( dst, sb.toString().getBytes("UTF-8") );
+    }
+}
@@ -13,8 +13,9 @@
  */
 package anthologiser;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import calliope.json.JSONDocument;
 /**
  * An item in a FileMap. A set of equivalent Folders with a single MVD key.
@@ -25,79 +26,91 @@ public class MultiFormatDir
     /** An array of items within that directory:
      * You can have several equivalent formats */
     ArrayList<Folder> items;
-    /** optional config */
-    JSONFileItem config;
     /** The parent temporary dir we are inside */
     File parent;
     String relPath;
     JSONDocument newConf;
-    /** simple name of source file */
-    String srcName;
+    /** simple names of the source files that contributed versions */
+    HashSet<String> srcNames;
+    /** position in the run of the source that set our title */
+    int titleRank;
+    /** where the work already is on disk, or null if it is new */
+    File home;
+    /** true once we have something to write out */
+    boolean dirty;
+    /** removed versions still in home, deleted on save unless re-added */
+    HashSet<String> stale;
     /**
-     * Read the contents of a directory and record the relative path of items
-     * @param parent the temp dir to store it in
-     * @param dir the directory to read from
+     * Get ready to add to or remove from a work already on disk. Only its 
+     * config is read in: new versions are written alongside the existing 
+     * ones when we are saved.
      * @throws Exception 
      */
-    final void readDir( File dir ) throws Exception
+    final void materialise() throws Exception
     {
-        File[] files = dir.listFiles();
-        for ( int i=0;i<files.length;i++ )
+        if ( !dirty )
         {
-            if ( files[i].isDirectory() )
-            {
-                // if there is a folder it must be a format
-                try
-                {
-                    Format f = Format.valueOf(files[i].getName());
-                    Folder folder = FolderFactory.makeFolder( files[i], 
-                        parent, f );
-                    items.add( folder );
-                }
-                catch ( Exception e )
-                {
-                    throw new Exception( "Invalid format folder "
-                        +files[i].getName());
-                }
-            }
-            else
+            dirty = true;
+            if ( home != null )
             {
-                // there might be a .conf file here
-                if ( files[i].getName().endsWith(".conf") )
+                File[] files = home.listFiles();
+                for ( int i=0;i<files.length;i++ )
                 {
-                    JSONFileItem jfi = new JSONFileItem(parent,"",files[i]);
-                    if ( config != null )
-                        config.jdoc.merge(jfi.jdoc );
-                    else
-                        config = jfi;
+                    if ( files[i].isFile() && files[i].getName().endsWith(".conf") )
+                    {
+                        JSONDocument jdoc = JSONDocument.internalise( 
+                            FileIO.readString(files[i]) );
+                        if ( jdoc == null )
+                            throw new Exception("Invalid config "
+                                +files[i].getPath());
+                        else if ( newConf != null )
+                            newConf.merge( jdoc );
+                        else
+                            newConf = jdoc;
+                    }
                 }
-                // ignore all other files
             }
         }
     }
     /**
-     * Get the simple name of the source file
-     * @return the source name
+     * Get the simple names of the source files that added versions to us
+     * @return the source names, possibly empty
+     */
+    HashSet<String> getSrcNames()
+    {
+        return srcNames;
+    }
+    /**
+     * Record that a source file has added versions to us
+     * @param name the simple name of the source
+     */
+    void addSrcName( String name )
+    {
+        srcNames.add( name );
+    }
+    /**
+     * Set the title of a new work
+     * @param title the work's title
+     * @param rank position in the run of the source it came from
      */
-    String getSrcName()
+    void setTitle( String title, int rank ) throws Exception
     {
-        return srcName;
+        addConfigPair( JSONKeys.TITLE, title );
+        this.titleRank = rank;
     }
     /**
-     * Get the simple name of the source file
-     * @param the source name
+     * Get the position of the source that gave us our title
+     * @return the rank, -1 if the work already existed
      */
-    void setSrcName( String name )
+    int getTitleRank()
     {
-        this.srcName = name;
+        return titleRank;
     }
     public String getTitle()
     {
         String title = "";
         if ( newConf != null && newConf.containsKey(JSONKeys.TITLE) )
             title = (String)newConf.get(JSONKeys.TITLE);
-        else if ( config != null && config.jdoc.containsKey(JSONKeys.TITLE) )
-            title = (String)config.jdoc.get(JSONKeys.TITLE);
         return title;   
     }
     /**
@@ -107,32 +120,28 @@ public class MultiFormatDir
      */
     public void addConfigPair( String key, Object value ) throws Exception
     {
+        materialise();
         if ( value instanceof String )
             value = Utils.cleanCR((String)value,true);
-        if ( newConf != null )
-        {
-            newConf.put(key,value);
-        }
-        else if ( config == null )
-        {
+        if ( newConf == null )
             newConf = new JSONDocument();
-            newConf.put(key,value);
-        }
-        else
-            config.jdoc.put( key, value );
+        newConf.put(key,value);
     }
     /**
-     * Read in a directory from an existing psef-archive
-     * @param parent the parent dir to store it in temporarily
-     * @param dir the folder item
+     * Refer to a work in an existing psef-archive without reading it
+     * @param parent the temp dir to store additions to it in
+     * @param dir the work's folder
+     * @param relPath the subfolder it is in
      */
-    public MultiFormatDir( File parent, File dir, String relPath ) throws Exception
+    public MultiFormatDir( File parent, File dir, String relPath )
     {
         this.parent = parent;
         this.relPath = relPath;
-        this.srcName = srcName;
+        this.home = dir;
+        this.srcNames = new HashSet<String>();
+        this.titleRank = -1;
+        this.stale = new HashSet<String>();
         items = new ArrayList<Folder>();
-        readDir( dir );
     }
     /**
      * Create an empty folder item with a name. For splitting.
@@ -143,8 +152,11 @@ public class MultiFormatDir
     {
         items = new ArrayList<Folder>();
         this.parent = parent;
-        this.srcName = srcName;
+        this.srcNames = new HashSet<String>();
+        this.srcNames.add( srcName );
         this.relPath = "";
+        this.stale = new HashSet<String>();
+        this.dirty = true;
     }
     private Format suffixToFormat( String suffix ) throws Exception
     {
@@ -197,28 +209,144 @@ public class MultiFormatDir
      * @param suffix its suffix
      * @throws Exception 
      */
-    public void add( byte[] data, String relPath, 
+    public void add( XMLWriter data, String relPath, 
         String name, String hVersion, String suffix ) throws Exception
     {
+        materialise();
         Format f = suffixToFormat( suffix );
         Folder folder = chooseFolder( f );
         if ( folder == null )
         {
             File file = new File( parent, f.toString() );
-            folder = FolderFactory.makeFolder(null, file, f);
+            folder = FolderFactory.makeFolder( file, f );
             items.add( folder );
         }
         folder.add( data, relPath, name, hVersion, suffix );
     }
     /**
-     * Save this multi-format item to disk
+     * Remove a file from whichever format folder holds it. When unchanged
+     * files are being kept its copy on disk stays until we are saved, in
+     * case the same version is added again.
+     * @param name the file's name
+     * @throws Exception 
+     */
+    void removeFile( String name ) throws Exception
+    {
+        materialise();
+        for ( int i=0;i<items.size();i++ )
+            items.get(i).remove( name );
+        if ( home != null && FileIO.skipUnchanged )
+            stale.add( name );
+        else if ( home != null )
+        {
+            File[] formats = home.listFiles();
+            for ( int i=0;i<formats.length;i++ )
+            {
+                File f = new File( formats[i], name );
+                if ( formats[i].isDirectory() && f.isFile() )
+                    FileIO.delete( f );
+            }
+        }
+    }
+    /**
+     * Do we have no versions left in any format?
+     * @return true if there is nothing worth saving
+     */
+    boolean isEmpty()
+    {
+        for ( int i=0;i<items.size();i++ )
+            if ( !items.get(i).isEmpty() )
+                return false;
+        if ( home != null )
+        {
+            File[] formats = home.listFiles();
+            for ( int i=0;i<formats.length;i++ )
+            {
+                if ( formats[i].isDirectory() )
+                {
+                    File[] files = formats[i].listFiles();
+                    for ( int j=0;j<files.length;j++ )
+                        if ( !files[j].getName().endsWith(".conf") 
+                            && !stale.contains(files[j].getName()) )
+                            return false;
+                }
+            }
+        }
+        return true;
+    }
+    /**
+     * Delete the work from disk
+     * @throws Exception 
+     */
+    void delete() throws Exception
+    {
+        if ( home != null && home.exists() )
+            Utils.removeDir( home );
+        home = null;
+    }
+    /**
+     * Save this multi-format item to disk. A work already on disk is moved 
+     * if it belongs in a different subfolder now, and only written to if 
+     * something was added to it.
      * @param dst the destination directory (not parent)
      * @param key the FolderItem's key in the FileMap
      * @throws Exception 
      */
     public void save( File dst, String key ) throws Exception
     {
+        WorkSaveEvent event = new WorkSaveEvent();
+        event.begin();
         File dir = new File( dst, key );
+        boolean moved = home != null 
+            && !home.getAbsoluteFile().equals(dir.getAbsoluteFile());
+        if ( moved )
+        {
+            if ( dir.exists() )
+                throw new Exception("Couldn't move "+home.getPath()
+                    +" to "+dir.getPath());
+            File up = dir.getParentFile();
+            if ( up != null && !up.exists() )
+                up.mkdirs();
+            FileIO.move( home, dir );
+            home = dir;
+        }
+        if ( dirty )
+            write( dir );
+        if ( event.shouldCommit() )
+        {
+            event.workKey = key;
+            event.folder = dst.getName();
+            event.moved = moved;
+            event.written = dirty;
+            event.commit();
+        }
+    }
+    /**
+     * Start writing new versions into the folder the work will be saved
+     * in, unless it is elsewhere now and has to be moved there first. The
+     * config is left until the save, since later sources may change it.
+     * @param dst the folder the work will be saved in
+     * @param key the FolderItem's key in the FileMap
+     * @param wb the writes in progress
+     * @throws Exception 
+     */
+    void writeAhead( File dst, String key, WriteBehind wb ) throws Exception
+    {
+        File dir = new File( dst, key );
+        if ( home == null 
+            || home.getAbsoluteFile().equals(dir.getAbsoluteFile()) )
+        {
+            for ( int i=0;i<items.size();i++ )
+                items.get(i).writeAhead( dir, wb );
+        }
+    }
+    /**
+     * Write our config and new versions into the work's folder
+     * @param dir the work's folder
+     * @throws Exception 
+     */
+    private void write( File dir ) throws Exception
+    {
         boolean success = true;
         if ( !dir.exists() )
             success = dir.mkdirs();
@@ -233,20 +361,43 @@ public class MultiFormatDir
                    if ( !res )
                        throw new Exception("Couldn't create config.conf");
                 }
-                FileOutputStream fos = new FileOutputStream(c);
-                fos.write( newConf.toString().getBytes());
-            }
-            else if ( config != null )
-            {
-                config.externalise( dir, "config.conf" );
+                String json = JSONWriter.toJSON( newConf );
+                FileIO.write( c, json.getBytes("UTF-8") );
             }
             for ( int i=0;i<items.size();i++ )
             {
                 Folder f = items.get( i );
                 f.externalise( dir );
             }
+            removeStale( dir );
         }
         else
             throw new Exception("Couldn't create directory "+dir.getPath());
     }
+    /**
+     * Delete removed versions that weren't added again
+     * @param dir the work's folder
+     */
+    private void removeStale( File dir )
+    {
+        Iterator<String> iter = stale.iterator();
+        while ( iter.hasNext() )
+        {
+            String name = iter.next();
+            boolean kept = false;
+            for ( int i=0;i<items.size()&&!kept;i++ )
+                kept = items.get(i).getDigest(name) != null;
+            if ( !kept )
+            {
+                File[] formats = dir.listFiles();
+                for ( int i=0;i<formats.length;i++ )
+                {
+                    File f = new File( formats[i], name );
+                    if ( formats[i].isDirectory() && f.isFile() )
+                        FileIO.delete( f );
+                }
+            }
+        }
+        stale.clear();
+    }
 }
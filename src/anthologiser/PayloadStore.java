@@ -0,0 +1,507 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Holds the content of files between splitting and saving. Small
+ * payloads are packed into large shared byte arrays until the heap
+ * budget is used up; anything bigger, or anything after that, is
+ * appended to a single spill file and remembered by its offset. Nothing
+ * is ever freed before release(), which ends the run. Each payload's
+ * SHA-1 digest is computed as it is stored, so payloads can be compared
+ * and hashed without reading them again.
+ * @author desmond
+ */
+public class PayloadStore
+{
+    /** default heap budget in bytes */
+    static long DEFAULT_BUDGET = 64L*1024*1024;
+    /** size of each shared array */
+    static int CHUNK_SIZE = 1024*1024;
+    /** payloads bigger than this always go to the spill file */
+    static int SMALL_LIMIT = 256*1024;
+    /** the store used by the whole run */
+    private static PayloadStore shared;
+    /** the budget for stores created from now on */
+    private static long budget = DEFAULT_BUDGET;
+    /** the maximum bytes of arrays to allocate */
+    long limit;
+    /** the arrays allocated so far */
+    ArrayList<byte[]> chunks;
+    /** the array being filled or null */
+    byte[] current;
+    /** bytes used in current */
+    int used;
+    /** the spill file, once it is needed */
+    File spillFile;
+    RandomAccessFile raf;
+    FileChannel spill;
+    /** the end of the data in the spill file */
+    long spillEnd;
+    /** a digester for each thread storing payloads */
+    private static final ThreadLocal<MessageDigest> digesters 
+        = new ThreadLocal<MessageDigest>()
+    {
+        protected MessageDigest initialValue()
+        {
+            try
+            {
+                return MessageDigest.getInstance( "SHA-1" );
+            }
+            catch ( Exception e )
+            {
+                throw new RuntimeException( e );
+            }
+        }
+    };
+    /**
+     * Where one file's content is kept
+     */
+    static class Payload
+    {
+        /** the store it is in */
+        PayloadStore store;
+        /** the array holding it, or null if spilled */
+        byte[] chunk;
+        /** its offset in chunk or in the spill file */
+        long offset;
+        /** its length in bytes */
+        int length;
+        /** the SHA-1 digest of the content */
+        byte[] digest;
+        Payload( PayloadStore store, byte[] chunk, long offset, int length,
+            byte[] digest )
+        {
+            this.store = store;
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+        /**
+         * Get the length of the content
+         * @return the number of bytes
+         */
+        int size()
+        {
+            return length;
+        }
+        /**
+         * Get the digest of the content
+         * @return the SHA-1 digest in hex
+         */
+        String getDigest()
+        {
+            return Utils.toHex( digest );
+        }
+        /**
+         * Is the content in the heap?
+         * @return true if it was not spilled
+         */
+        boolean inMemory()
+        {
+            return chunk != null;
+        }
+        /**
+         * Read the content a piece at a time
+         * @return a stream over the content
+         */
+        InputStream openStream()
+        {
+            if ( chunk != null )
+                return new java.io.ByteArrayInputStream( chunk, (int)offset,
+                    length );
+            else
+                return store.new SpillInputStream( offset, length );
+        }
+        /**
+         * Copy the content to a stream
+         * @param out the stream
+         * @throws Exception
+         */
+        void writeTo( OutputStream out ) throws Exception
+        {
+            if ( chunk != null )
+                out.write( chunk, (int)offset, length );
+            else
+                FileIO.copyStream( openStream(), out );
+        }
+        /**
+         * Write the content to a file, replacing it. Spilled content goes
+         * straight from the spill file to the new one.
+         * @param dst the file to write
+         * @return false if it already had this content and was left alone
+         * @throws Exception
+         */
+        boolean writeTo( File dst ) throws Exception
+        {
+            if ( FileIO.unchanged(dst,length,digest) )
+                return false;
+            // don't write through a link into a blob other works share
+            if ( dst.exists() )
+                dst.delete();
+            FileOutputStream fos = new FileOutputStream( dst );
+            try
+            {
+                if ( chunk != null )
+                    fos.write( chunk, (int)offset, length );
+                else
+                {
+                    FileChannel out = fos.getChannel();
+                    long pos = 0;
+                    while ( pos < length )
+                    {
+                        long n = store.spill.transferTo( offset+pos,
+                            length-pos, out );
+                        if ( n <= 0 )
+                            throw new Exception("Spill file truncated");
+                        pos += n;
+                    }
+                }
+                FileIO.written( fos, dst );
+            }
+            finally
+            {
+                fos.close();
+            }
+            Metrics.wrote( length );
+            return true;
+        }
+        /**
+         * Get a copy of the content. Use a stream where possible.
+         * @return the bytes
+         * @throws Exception
+         */
+        byte[] toByteArray() throws Exception
+        {
+            byte[] data = new byte[length];
+            if ( chunk != null )
+                System.arraycopy( chunk, (int)offset, data, 0, length );
+            else
+                store.readSpill( offset, data, 0, length );
+            return data;
+        }
+        /**
+         * Does another payload have the same content?
+         * @param other the other payload
+         * @return true if their lengths and digests are equal
+         */
+        boolean contentEquals( Payload other )
+        {
+            return other.length == length 
+                && Arrays.equals( other.digest, digest );
+        }
+        /**
+         * Get a hash code for the content
+         * @return the first four bytes of the digest
+         */
+        int contentHash()
+        {
+            return ((digest[0]&0xFF)<<24)|((digest[1]&0xFF)<<16)
+                |((digest[2]&0xFF)<<8)|(digest[3]&0xFF);
+        }
+    }
+    /**
+     * Create a store
+     * @param limit the most bytes of heap to use for content
+     */
+    PayloadStore( long limit )
+    {
+        this.limit = limit;
+        chunks = new ArrayList<byte[]>();
+    }
+    /**
+     * Set the heap budget of the shared store. Call before it is used.
+     * @param bytes the budget in bytes
+     */
+    static synchronized void setBudget( long bytes )
+    {
+        budget = bytes;
+    }
+    /**
+     * Get the store shared by the whole run, creating it if need be
+     * @return the shared store
+     */
+    static synchronized PayloadStore get()
+    {
+        if ( shared == null )
+            shared = new PayloadStore( budget );
+        return shared;
+    }
+    /**
+     * Drop the shared store and remove its spill file. Any payloads
+     * still held become unusable.
+     */
+    static synchronized void release()
+    {
+        if ( shared != null )
+        {
+            shared.close();
+            shared = null;
+        }
+    }
+    /**
+     * Find room in the heap for a payload
+     * @param len its length
+     * @return true if current now has len bytes free
+     */
+    private boolean reserve( int len )
+    {
+        if ( len > SMALL_LIMIT )
+            return false;
+        else if ( current != null && used+len <= current.length )
+            return true;
+        else if ( (long)(chunks.size()+1)*CHUNK_SIZE > limit )
+            return false;
+        else
+        {
+            current = new byte[CHUNK_SIZE];
+            chunks.add( current );
+            used = 0;
+            return true;
+        }
+    }
+    /**
+     * Open the spill file the first time something won't fit
+     * @throws Exception
+     */
+    private void openSpill() throws Exception
+    {
+        if ( spill == null )
+        {
+            spillFile = File.createTempFile( "ANTH", ".spill" );
+            spillFile.deleteOnExit();
+            raf = new RandomAccessFile( spillFile, "rw" );
+            spill = raf.getChannel();
+        }
+    }
+    /**
+     * Store some bytes
+     * @param data an array holding them
+     * @param off the offset of the first
+     * @param len their number
+     * @return the payload
+     * @throws Exception
+     */
+    Payload add( byte[] data, int off, int len ) throws Exception
+    {
+        MessageDigest md = digesters.get();
+        md.update( data, off, len );
+        return store( data, off, len, md.digest() );
+    }
+    /**
+     * Copy some bytes into the heap or the spill file
+     * @param data an array holding them
+     * @param off the offset of the first
+     * @param len their number
+     * @param digest their digest
+     * @return the payload
+     * @throws Exception
+     */
+    private synchronized Payload store( byte[] data, int off, int len, 
+        byte[] digest ) throws Exception
+    {
+        if ( reserve(len) )
+        {
+            System.arraycopy( data, off, current, used, len );
+            Payload p = new Payload( this, current, used, len, digest );
+            used += len;
+            return p;
+        }
+        else
+        {
+            openSpill();
+            ByteBuffer bb = ByteBuffer.wrap( data, off, len );
+            long pos = spillEnd;
+            while ( bb.hasRemaining() )
+                pos += spill.write( bb, pos );
+            Payload p = new Payload( this, null, spillEnd, len, digest );
+            spillEnd = pos;
+            return p;
+        }
+    }
+    /**
+     * Store a serialised document
+     * @param w the writer holding it, which may then be reused
+     * @return the payload
+     * @throws Exception
+     */
+    Payload add( XMLWriter w ) throws Exception
+    {
+        return add( w.buf, 0, w.count );
+    }
+    /**
+     * Store a copy of a file's content
+     * @param src the file, which is left alone
+     * @return the payload
+     * @throws Exception
+     */
+    Payload add( File src ) throws Exception
+    {
+        long size = src.length();
+        if ( size > Integer.MAX_VALUE )
+            throw new Exception(src.getPath()+" is too large");
+        if ( size <= SMALL_LIMIT )
+        {
+            byte[] data = FileIO.readAll( src );
+            return add( data, 0, data.length );
+        }
+        else
+            return spillFile( src, (int)size );
+    }
+    /**
+     * Append a large file to the spill file, digesting it on the way
+     * @param src the file
+     * @param len its length
+     * @return the payload
+     * @throws Exception
+     */
+    private synchronized Payload spillFile( File src, int len ) 
+        throws Exception
+    {
+        openSpill();
+        MessageDigest md = digesters.get();
+        FileInputStream fis = new FileInputStream( src );
+        ByteBuffer bb = FileIO.takeBuffer();
+        try
+        {
+            FileChannel in = fis.getChannel();
+            long pos = spillEnd;
+            while ( pos-spillEnd < len )
+            {
+                bb.clear();
+                bb.limit( (int)Math.min(bb.capacity(),len-(pos-spillEnd)) );
+                if ( in.read(bb) == -1 )
+                    break;
+                bb.flip();
+                md.update( bb.duplicate() );
+                while ( bb.hasRemaining() )
+                    pos += spill.write( bb, pos );
+            }
+            if ( pos-spillEnd < len )
+                throw new Exception("Unexpected end of "+src.getPath());
+        }
+        finally
+        {
+            FileIO.giveBack( bb );
+            fis.close();
+        }
+        Metrics.read( len );
+        Payload p = new Payload( this, null, spillEnd, len, md.digest() );
+        spillEnd += len;
+        return p;
+    }
+    /**
+     * Read part of the spill file. Positional reads don't move the
+     * channel's position so need no lock.
+     * @param pos the offset in the spill file
+     * @param data the array to read into
+     * @param off where to start in data
+     * @param len the number of bytes to read
+     * @throws IOException
+     */
+    void readSpill( long pos, byte[] data, int off, int len )
+        throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap( data, off, len );
+        while ( bb.hasRemaining() )
+        {
+            int n = spill.read( bb, pos );
+            if ( n < 0 )
+                throw new IOException("Spill file truncated");
+            pos += n;
+        }
+    }
+    /**
+     * Get the bytes of heap allocated for content
+     * @return the total size of the arrays
+     */
+    synchronized long heapBytes()
+    {
+        return (long)chunks.size()*CHUNK_SIZE;
+    }
+    /**
+     * Get the bytes written to the spill file
+     * @return its length
+     */
+    synchronized long spilledBytes()
+    {
+        return spillEnd;
+    }
+    /**
+     * Free the arrays and remove the spill file
+     */
+    synchronized void close()
+    {
+        chunks.clear();
+        current = null;
+        try
+        {
+            if ( raf != null )
+                raf.close();
+        }
+        catch ( IOException e )
+        {
+        }
+        if ( spillFile != null )
+            spillFile.delete();
+        spill = null;
+        raf = null;
+        spillFile = null;
+        spillEnd = 0;
+    }
+    /**
+     * Reads one spilled payload
+     */
+    class SpillInputStream extends InputStream
+    {
+        long pos;
+        long end;
+        SpillInputStream( long offset, int length )
+        {
+            this.pos = offset;
+            this.end = offset+length;
+        }
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return ( read(one,0,1) == -1 ) ? -1 : one[0]&0xFF;
+        }
+        public int read( byte[] b, int off, int len ) throws IOException
+        {
+            if ( pos >= end )
+                return -1;
+            int n = (int)Math.min( len, end-pos );
+            readSpill( pos, b, off, n );
+            pos += n;
+            return n;
+        }
+        public int available()
+        {
+            return (int)Math.min( Integer.MAX_VALUE, end-pos );
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Where the poems are in a source, found by scanning its bytes without
+ * parsing it. The scan follows PoemSplitter: before the first poem it
+ * descends into body and text and passes over everything else; poems
+ * start at "***" comments among the children of the element it got to,
+ * and the last ends where that element does. Each poem's bytes can then
+ * be parsed on its own, given the namespaces declared above it.
+ * @author desmond
+ */
+public class PoemBoundaries
+{
+    static final Pattern XMLNS = Pattern.compile(
+        "(?<=\\s)xmlns(:[^\\s=]+)?\\s*=\\s*(\"[^\"]*\"|'[^']*')" );
+    static final Charset UTF8 = Charset.forName( "UTF-8" );
+    /** offsets of the boundary comments */
+    int[] starts;
+    /** number of boundaries found */
+    int count;
+    /** offset of the end tag of the element holding the poems */
+    int end;
+    /** namespace declarations in scope for the poems, by attribute name */
+    LinkedHashMap<String,String> namespaces;
+    /** the source */
+    ByteBuffer buf;
+    /** the next byte to scan */
+    int pos;
+    /** scanned up to the end of the last tag */
+    int tagEnd;
+    /** where the local name of the last tag starts and ends */
+    int nameStart;
+    int nameEnd;
+    PoemBoundaries( ByteBuffer buf )
+    {
+        this.buf = buf;
+        this.starts = new int[64];
+        this.namespaces = new LinkedHashMap<String,String>();
+    }
+    /**
+     * Find the poems in a source
+     * @param buf the source's bytes
+     * @return the boundaries, or null if the source can't be split by
+     * offset: it has a DTD, isn't in UTF-8 or is otherwise unusual
+     */
+    static PoemBoundaries scan( ByteBuffer buf )
+    {
+        PoemBoundaries pb = new PoemBoundaries( buf );
+        return pb.scan() ? pb : null;
+    }
+    /**
+     * Get the number of poems found
+     * @return the number of boundaries
+     */
+    int size()
+    {
+        return count;
+    }
+    /**
+     * Get where a poem's bytes start
+     * @param i the poem's index
+     * @return the offset of its boundary comment
+     */
+    int start( int i )
+    {
+        return starts[i];
+    }
+    /**
+     * Get where a poem's bytes end
+     * @param i the poem's index
+     * @return the offset of the next boundary or of the end tag
+     */
+    int end( int i )
+    {
+        return (i+1<count)?starts[i+1]:end;
+    }
+    /**
+     * Does the source have these bytes here?
+     * @param at the offset
+     * @param s an ASCII string
+     * @return true if it matches
+     */
+    private boolean at( int at, String s )
+    {
+        if ( at+s.length() > buf.limit() )
+            return false;
+        for ( int i=0;i<s.length();i++ )
+            if ( (buf.get(at+i)&0xFF) != s.charAt(i) )
+                return false;
+        return true;
+    }
+    /**
+     * Find a string from the current position
+     * @param s an ASCII string
+     * @return its offset or -1
+     */
+    private int find( String s )
+    {
+        int limit = buf.limit()-s.length();
+        byte first = (byte)s.charAt( 0 );
+        for ( int i=pos;i<=limit;i++ )
+            if ( buf.get(i) == first && at(i,s) )
+                return i;
+        return -1;
+    }
+    /**
+     * Skip to just after a string
+     * @param s the string
+     * @return false if it isn't there
+     */
+    private boolean skipPast( String s )
+    {
+        int i = find( s );
+        if ( i == -1 )
+            return false;
+        pos = i+s.length();
+        return true;
+    }
+    /**
+     * Check the XML declaration, if there is one, for the encoding
+     * @return true if the source is in UTF-8
+     */
+    private boolean checkEncoding()
+    {
+        if ( buf.limit() < 2 || buf.get(0)==0 || buf.get(1)==0
+            || at(0,"\u00FE\u00FF") || at(0,"\u00FF\u00FE") )
+            return false;
+        if ( at(0,"\u00EF\u00BB\u00BF") )
+            pos = 3;
+        if ( at(pos,"<?xml") )
+        {
+            int start = pos;
+            if ( !skipPast("?>") )
+                return false;
+            String decl = decode( start, pos );
+            Matcher m = Pattern.compile(
+                "encoding\\s*=\\s*[\"']([^\"']*)[\"']").matcher( decl );
+            if ( m.find() && !m.group(1).equalsIgnoreCase("UTF-8") )
+                return false;
+        }
+        return true;
+    }
+    /**
+     * Convert some of the source to a string
+     * @param from the first offset
+     * @param to the offset after the last
+     * @return the text
+     */
+    private String decode( int from, int to )
+    {
+        byte[] data = new byte[to-from];
+        for ( int i=0;i<data.length;i++ )
+            data[i] = buf.get( from+i );
+        return new String( data, UTF8 );
+    }
+    /**
+     * Read a tag from just after its "<" to just after its ">"
+     * @return false if the tag is bad
+     */
+    private boolean readTag()
+    {
+        nameStart = pos;
+        int limit = buf.limit();
+        while ( pos < limit )
+        {
+            byte b = buf.get( pos );
+            if ( b=='>' || b=='/' || b==' ' || b=='\t' || b=='\n'
+                || b=='\r' )
+                break;
+            else if ( b == ':' )
+                nameStart = pos+1;
+            pos++;
+        }
+        nameEnd = pos;
+        byte quote = 0;
+        while ( pos < limit )
+        {
+            byte b = buf.get( pos++ );
+            if ( quote != 0 )
+            {
+                if ( b == quote )
+                    quote = 0;
+            }
+            else if ( b=='"' || b=='\'' )
+                quote = b;
+            else if ( b == '>' )
+            {
+                tagEnd = pos;
+                return true;
+            }
+        }
+        return false;
+    }
+    /**
+     * Is the last tag's element body or text?
+     * @return true if its local name is one of those
+     */
+    private boolean isBodyOrText()
+    {
+        int len = nameEnd-nameStart;
+        return (len==4 && at(nameStart,"body")) 
+            || (len==4 && at(nameStart,"text"));
+    }
+    /**
+     * Add the namespaces declared in a start tag to those in scope
+     * @param from the offset of the tag's "<"
+     */
+    private void addNamespaces( int from )
+    {
+        Matcher m = XMLNS.matcher( decode(from,tagEnd) );
+        while ( m.find() )
+            namespaces.put( "xmlns"+((m.group(1)==null)?"":m.group(1)), 
+                m.group() );
+    }
+    /**
+     * Get the namespace declarations in scope for the poems
+     * @return attributes for an element enclosing them, each after a space
+     */
+    String getNamespaces()
+    {
+        StringBuilder sb = new StringBuilder();
+        Iterator<String> iter = namespaces.values().iterator();
+        while ( iter.hasNext() )
+            sb.append( ' ' ).append( iter.next() );
+        return sb.toString();
+    }
+    /**
+     * Is a comment a poem boundary?
+     * @param at the offset of its "<!--"
+     * @return true if its text starts with "***" after white space
+     */
+    private boolean isBoundary( int at )
+    {
+        int i = at+4;
+        while ( i < buf.limit() && (buf.get(i)&0xFF) <= ' ' )
+            i++;
+        return at( i, "***" );
+    }
+    /**
+     * Scan the source
+     * @return true if the poems were found
+     */
+    private boolean scan()
+    {
+        if ( !checkEncoding() )
+            return false;
+        // depth of open elements and the depth whose children are read
+        int depth = 0;
+        int level = 1;
+        // depth at which an element being passed over started, or -1
+        int skipping = -1;
+        int limit = buf.limit();
+        while ( pos < limit )
+        {
+            if ( buf.get(pos) != '<' )
+            {
+                pos++;
+                continue;
+            }
+            int tag = pos;
+            if ( at(pos,"<!--") )
+            {
+                if ( depth == level && skipping == -1 && isBoundary(pos) )
+                {
+                    if ( count == starts.length )
+                    {
+                        int[] bigger = new int[count*2];
+                        System.arraycopy( starts, 0, bigger, 0, count );
+                        starts = bigger;
+                    }
+                    starts[count++] = pos;
+                }
+                if ( !skipPast("-->") )
+                    return false;
+            }
+            else if ( at(pos,"<![CDATA[") )
+            {
+                if ( !skipPast("]]>") )
+                    return false;
+            }
+            else if ( at(pos,"<?") )
+            {
+                if ( !skipPast("?>") )
+                    return false;
+            }
+            else if ( at(pos,"<!") )
+                // a DTD may declare entities the poems use
+                return false;
+            else if ( at(pos,"</") )
+            {
+                pos += 2;
+                if ( !readTag() )
+                    return false;
+                if ( depth == level )
+                {
+                    end = tag;
+                    return count > 0;
+                }
+                depth--;
+                if ( depth == skipping )
+                    skipping = -1;
+            }
+            else
+            {
+                pos++;
+                if ( !readTag() )
+                    return false;
+                boolean empty = buf.get(tagEnd-2) == '/';
+                if ( depth == 0 )
+                {
+                    if ( empty )
+                        return false;
+                    addNamespaces( tag );
+                    depth = 1;
+                }
+                else if ( depth == level && count == 0 && skipping == -1 )
+                {
+                    if ( isBodyOrText() )
+                    {
+                        if ( empty )
+                            return false;
+                        addNamespaces( tag );
+                        level++;
+                        depth++;
+                    }
+                    else if ( !empty )
+                    {
+                        skipping = depth;
+                        depth++;
+                    }
+                }
+                else if ( !empty )
+                    depth++;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.DataAmount;
+
+/**
+ * JFR event: a poem split from a source and written to its work.
+ * @author desmond
+ */
+@Name("anthologiser.Poem")
+@Label("Poem")
+@Category("Anthologiser")
+@Description("A poem split from a source and written to its work")
+public class PoemEvent extends Event
+{
+    @Label("Work Key")
+    @Description("The work's key in the FileMap")
+    String workKey;
+    @Label("Version")
+    @Description("The version ID, e.g. H12ab")
+    String hVersion;
+    @Label("Source")
+    @Description("The source file's name")
+    String source;
+    @Label("Bytes")
+    @DataAmount
+    @Description("The size of the poem's TEI")
+    long bytes;
+}
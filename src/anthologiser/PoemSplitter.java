@@ -0,0 +1,707 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.InputStream;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamConstants;
+
+/**
+ * Split a source anthology into poems as it is read, without building a
+ * tree of the whole document. Poems start at comments beginning with
+ * "***" and each is handed to the Anthologiser as soon as it is complete,
+ * so memory is bounded by the largest poem, not by the source. MJS notes
+ * (div type="mjsnote") become note resp="MJS" and floatingText becomes
+ * div on the way through. Given a pool, a source's poems are found by a
+ * scan of its bytes and split on the pool, then handed over in order.
+ * @author desmond
+ */
+public class PoemSplitter
+{
+    static XMLInputFactory factory;
+    static
+    {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+    }
+    /** the Anthologiser that receives the poems */
+    Anthologiser anthologiser;
+    /** the source being split */
+    File src;
+    /** the source's position in the run */
+    int rank;
+    /** the current poem's content, reused for each poem */
+    XMLWriter poem;
+    /** where serialised XML is currently going */
+    XMLWriter out;
+    /** scratch writers for converting notes, kept for reuse */
+    ArrayList<XMLWriter> spare;
+    /** normalised title of the current poem or null if not in a poem */
+    String title;
+    String hVersion;
+    String hWork;
+    /** true until the current poem's text element has content */
+    boolean textEmpty;
+    /** text of the source description being read or null */
+    StringBuilder desc;
+    /** true once the current top-level div has given its description */
+    boolean descFound;
+    /** JFR event timing the current poem */
+    PoemEvent event;
+    /** pool to split poems on or null to split them as they are read */
+    ForkJoinPool pool;
+    /** where to keep what each poem gives, or null to hand it straight on */
+    ArrayList<Segment> segments;
+    /** the root wrapped around each run of poems split on the pool */
+    static final String SEGMENT = "segment";
+    /** bounds on the bytes of poems split together on the pool */
+    static final int MIN_RUN = 64*1024;
+    static final int MAX_RUN = 1024*1024;
+    /**
+     * What splitting one poem on the pool gave, kept until the poems 
+     * before it have been handed over
+     */
+    static class Segment
+    {
+        String title;
+        String hWork;
+        String hVersion;
+        /** the poem or null if it had no version ID */
+        XMLWriter poem;
+        /** source descriptions found in it, in order */
+        ArrayList<String> descriptions = new ArrayList<String>();
+    }
+    /**
+     * Read a slice of a buffer
+     */
+    static class BufferInputStream extends InputStream
+    {
+        ByteBuffer buf;
+        BufferInputStream( ByteBuffer buf )
+        {
+            this.buf = buf;
+        }
+        public int read()
+        {
+            return buf.hasRemaining() ? buf.get()&0xFF : -1;
+        }
+        public int read( byte[] b, int off, int len )
+        {
+            if ( len == 0 )
+                return 0;
+            else if ( !buf.hasRemaining() )
+                return -1;
+            len = Math.min( len, buf.remaining() );
+            buf.get( b, off, len );
+            return len;
+        }
+    }
+    /**
+     * Create a splitter for one source file
+     * @param anthologiser the Anthologiser to give the poems to
+     * @param src the source XML file
+     * @param rank the source's position in the run
+     */
+    PoemSplitter( Anthologiser anthologiser, File src, int rank )
+    {
+        this( anthologiser, src, rank, null );
+    }
+    /**
+     * Create a splitter for one source file
+     * @param anthologiser the Anthologiser to give the poems to
+     * @param src the source XML file
+     * @param rank the source's position in the run
+     * @param pool pool to split its poems on or null
+     */
+    PoemSplitter( Anthologiser anthologiser, File src, int rank, 
+        ForkJoinPool pool )
+    {
+        this.anthologiser = anthologiser;
+        this.src = src;
+        this.rank = rank;
+        this.pool = pool;
+        this.poem = new XMLWriter();
+        this.spare = new ArrayList<XMLWriter>();
+    }
+    /**
+     * Split the source file into poems
+     * @throws Exception
+     */
+    void split() throws Exception
+    {
+        if ( pool == null || !splitParallel() )
+        {
+            InputStream in = new BufferedInputStream( 
+                new FileInputStream(src) );
+            try
+            {
+                splitStream( in );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        Metrics.read( src.length() );
+    }
+    /**
+     * Split the poems of the source on the pool, in runs of about the
+     * same size so that short poems don't each pay for a parser. A few 
+     * times as many runs as the pool has threads are split ahead of the 
+     * one being handed over, so memory stays bounded however many there 
+     * are.
+     * @return false if the source couldn't be divided up, so nothing 
+     * was done
+     * @throws Exception
+     */
+    private boolean splitParallel() throws Exception
+    {
+        if ( src.length() > Integer.MAX_VALUE )
+            return false;
+        MappedByteBuffer map = FileIO.map( src );
+        PoemBoundaries pb = PoemBoundaries.scan( map );
+        if ( pb == null || pb.size() < 2 )
+            return false;
+        final byte[] head = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><"
+            +SEGMENT+pb.getNamespaces()+">").getBytes( "UTF-8" );
+        final byte[] tail = ("</"+SEGMENT+">").getBytes( "UTF-8" );
+        int runBytes = (int)Math.min( MAX_RUN, Math.max(MIN_RUN,
+            map.limit()/(8L*pool.getParallelism())) );
+        ArrayDeque<ForkJoinTask<ArrayList<Segment>>> window 
+            = new ArrayDeque<ForkJoinTask<ArrayList<Segment>>>();
+        int ahead = 4*pool.getParallelism();
+        int next = 0;
+        try
+        {
+            while ( next < pb.size() || !window.isEmpty() )
+            {
+                while ( next < pb.size() && window.size() < ahead )
+                {
+                    int first = next++;
+                    while ( next < pb.size() 
+                        && pb.end(next)-pb.start(first) <= runBytes )
+                        next++;
+                    ByteBuffer slice = map.duplicate();
+                    slice.limit( pb.end(next-1) );
+                    slice.position( pb.start(first) );
+                    final ByteBuffer bytes = slice.slice();
+                    window.add( pool.submit(
+                        new Callable<ArrayList<Segment>>() {
+                        public ArrayList<Segment> call() throws Exception
+                        {
+                            return splitRun( head, bytes, tail );
+                        }
+                    }) );
+                }
+                ArrayList<Segment> run;
+                try
+                {
+                    run = window.removeFirst().get();
+                }
+                catch ( ExecutionException e )
+                {
+                    if ( e.getCause() instanceof Exception )
+                        throw (Exception)e.getCause();
+                    else
+                        throw e;
+                }
+                for ( int i=0;i<run.size();i++ )
+                {
+                    Segment seg = run.get( i );
+                    for ( int j=0;j<seg.descriptions.size();j++ )
+                        anthologiser.setDescription( src, 
+                            seg.descriptions.get(j) );
+                    if ( seg.poem != null )
+                        anthologiser.addPoem( seg.title, src, rank, 
+                            seg.hWork, seg.hVersion, seg.poem );
+                }
+            }
+        }
+        finally
+        {
+            while ( !window.isEmpty() )
+                window.removeFirst().cancel( true );
+        }
+        return true;
+    }
+    /**
+     * Split a run of poems on their own
+     * @param head the start of a document to hold them
+     * @param bytes the poems from the first one's boundary comment on
+     * @param tail the end of the document
+     * @return what each poem gave, in order
+     * @throws Exception
+     */
+    private ArrayList<Segment> splitRun( byte[] head, ByteBuffer bytes, 
+        byte[] tail ) throws Exception
+    {
+        PoemSplitter splitter = new PoemSplitter( anthologiser, src, rank );
+        splitter.segments = new ArrayList<Segment>();
+        splitter.splitStream( new SequenceInputStream(
+            new ByteArrayInputStream(head), new SequenceInputStream(
+            new BufferInputStream(bytes), new ByteArrayInputStream(tail))) );
+        return splitter.segments;
+    }
+    /**
+     * Split a document into poems
+     * @param in the document
+     * @throws Exception
+     */
+    private void splitStream( InputStream in ) throws Exception
+    {
+        XMLStreamReader r = factory.createXMLStreamReader( in );
+        try
+        {
+            while ( r.hasNext() )
+            {
+                if ( r.next()==XMLStreamConstants.START_ELEMENT )
+                {
+                    splitContainer( r );
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            r.close();
+        }
+    }
+    /**
+     * Read the children of the element containing the poems. Before the
+     * first poem we descend into body and text and skip everything else.
+     * The end of the container ends the last poem.
+     * @param r the reader positioned at the container's start tag
+     */
+    private void splitContainer( XMLStreamReader r ) throws Exception
+    {
+        while ( r.hasNext() )
+        {
+            switch ( r.next() )
+            {
+                case XMLStreamConstants.START_ELEMENT:
+                    if ( title != null )
+                    {
+                        textEmpty = closeStartTag( textEmpty );
+                        copyElement( r, 0 );
+                    }
+                    else if ( !r.getLocalName().equals("body")
+                        && !r.getLocalName().equals("text") )
+                        skipElement( r );
+                    // else descend into it
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if ( r.getText().trim().startsWith("***") )
+                        startPoem( r.getText() );
+                    else if ( title != null )
+                    {
+                        textEmpty = closeStartTag( textEmpty );
+                        out.comment( r.getText() );
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if ( title != null )
+                    {
+                        textEmpty = closeStartTag( textEmpty );
+                        out.text( r.getText() );
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                case XMLStreamConstants.END_DOCUMENT:
+                    endPoem();
+                    return;
+            }
+        }
+        endPoem();
+    }
+    /**
+     * A boundary comment: finish the last poem and start a new one
+     * @param comment the comment's text
+     */
+    private void startPoem( String comment ) throws Exception
+    {
+        endPoem();
+        String content = comment.substring(4).trim();
+        content = content.replace("/","_");
+        title = normaliseName( content );
+        hVersion = hWork = null;
+        event = new PoemEvent();
+        event.begin();
+        if ( segments != null )
+        {
+            // each poem is kept, so it needs a buffer of its own
+            segments.add( new Segment() );
+            poem = new XMLWriter();
+        }
+        else
+            poem.reset();
+        out = poem;
+        out.markup( "<TEI><body><text" );
+        textEmpty = true;
+    }
+    /**
+     * Hand the current poem, if any, to the Anthologiser
+     */
+    private void endPoem() throws Exception
+    {
+        if ( title != null )
+        {
+            out.endTag( "text", textEmpty );
+            out.markup( "</body></TEI>" );
+            if ( hWork != null && hVersion != null && segments != null )
+            {
+                Segment seg = segments.get( segments.size()-1 );
+                seg.title = title;
+                seg.hWork = hWork;
+                seg.hVersion = hVersion;
+                seg.poem = poem;
+            }
+            else if ( hWork != null && hVersion != null )
+                anthologiser.addPoem( title, src, rank, hWork, hVersion, poem );
+            if ( event.shouldCommit() )
+            {
+                event.workKey = (hWork!=null)?"%"+hWork.toLowerCase():null;
+                event.hVersion = hVersion;
+                event.source = src.getName();
+                event.bytes = poem.size();
+                event.commit();
+            }
+            title = null;
+            Metrics.poem();
+        }
+    }
+    /**
+     * Normalise a poem's name by removing unwanted junk
+     * @param raw the raw poem name from the src
+     * @return a normalised poem name
+     */
+    private static String normaliseName( String raw )
+    {
+        return raw.replaceAll(":|\\?|\"","");
+    }
+    /**
+     * Get the work ID from a version ID by removing trailing lowercase
+     * @param hVersion the version ID, e.g. H12ab
+     * @return the work ID, e.g. H12
+     */
+    static String hGetWork( String hVersion )
+    {
+        if ( hVersion.length() > 1 )
+        {
+            StringBuilder sb = new StringBuilder(hVersion);
+            char token = sb.charAt(sb.length()-1);
+            while ( sb.length()> 1 && Character.isLowerCase(token) )
+            {
+                sb.setLength(sb.length()-1);
+                token = sb.charAt(sb.length()-1);
+            }
+            return sb.toString();
+        }
+        else
+            return hVersion;
+    }
+    /**
+     * Skip over an element and all its content
+     * @param r the reader positioned at its start tag
+     */
+    private void skipElement( XMLStreamReader r ) throws Exception
+    {
+        int depth = 1;
+        while ( depth > 0 )
+        {
+            int event = r.next();
+            if ( event==XMLStreamConstants.START_ELEMENT )
+                depth++;
+            else if ( event==XMLStreamConstants.END_ELEMENT )
+                depth--;
+        }
+    }
+    /**
+     * Get an attribute of the current element
+     * @param r the reader positioned at a start tag
+     * @param prefix the attribute's prefix, empty for none
+     * @param name the attribute's local name
+     * @return its value or the empty string
+     */
+    private static String getAttribute( XMLStreamReader r, String prefix,
+        String name )
+    {
+        for ( int i=0;i<r.getAttributeCount();i++ )
+        {
+            String p = r.getAttributePrefix(i);
+            if ( p == null )
+                p = "";
+            if ( p.equals(prefix) && r.getAttributeLocalName(i).equals(name) )
+                return r.getAttributeValue(i);
+        }
+        return "";
+    }
+    /**
+     * Get the qualified name of the current element
+     * @param r the reader positioned at a start tag
+     * @return the prefixed name
+     */
+    private static String qName( XMLStreamReader r )
+    {
+        String prefix = r.getPrefix();
+        if ( prefix != null && prefix.length()>0 )
+            return prefix+":"+r.getLocalName();
+        else
+            return r.getLocalName();
+    }
+    /**
+     * Copy an element and its content into the poem, converting notes
+     * @param r the reader positioned at its start tag
+     * @param level 0 for a child of the container, 1 for a grandchild
+     * of a div at level 0, 2 for anything deeper
+     */
+    private void copyElement( XMLStreamReader r, int level ) throws Exception
+    {
+        String name = qName( r );
+        boolean isDiv = name.equals("div");
+        String type = getAttribute( r, "", "type" );
+        if ( isDiv && type.toLowerCase().equals("mjsnote") )
+        {
+            copyNote( r );
+            return;
+        }
+        else if ( name.equals("floatingText") )
+        {
+            name = "div";
+            isDiv = true;
+        }
+        if ( level == 0 && isDiv )
+        {
+            descFound = false;
+            String attr = getAttribute( r, "xml", "id" );
+            if ( type.toLowerCase().equals("hversion")
+                && attr.startsWith("H") )
+            {
+                hVersion = attr;
+                hWork = hGetWork( hVersion );
+            }
+        }
+        boolean isSource = level==1 && isDiv && type.equals("source")
+            && !descFound;
+        if ( isSource )
+            desc = new StringBuilder();
+        writeStartTag( r, name );
+        int childLevel = (level==0&&isDiv)?1:2;
+        boolean empty = copyContent( r, childLevel, true );
+        out.endTag( name, empty );
+        if ( isSource )
+        {
+            if ( segments != null )
+                segments.get(segments.size()-1).descriptions.add( 
+                    desc.toString() );
+            else
+                anthologiser.setDescription( src, desc.toString() );
+            // only the first source description in each div counts
+            desc = null;
+            descFound = true;
+        }
+    }
+    /**
+     * Copy the content of the current element up to its end tag
+     * @param r the reader positioned at the element's start tag
+     * @param level the level of any child elements
+     * @param open true if the element's start tag is still open and must
+     * be closed before its first content
+     * @return true if the element had no content
+     */
+    private boolean copyContent( XMLStreamReader r, int level, boolean open )
+        throws Exception
+    {
+        boolean empty = true;
+        while ( true )
+        {
+            int event = r.next();
+            if ( event==XMLStreamConstants.END_ELEMENT )
+                return empty;
+            else if ( event==XMLStreamConstants.START_ELEMENT
+                || r.isCharacters()
+                || event==XMLStreamConstants.COMMENT )
+            {
+                if ( empty && open )
+                    out.closeStartTag();
+                empty = false;
+                if ( event==XMLStreamConstants.START_ELEMENT )
+                    copyElement( r, level );
+                else if ( event==XMLStreamConstants.COMMENT )
+                    out.comment( r.getText() );
+                else
+                {
+                    out.text( r.getText() );
+                    if ( desc != null )
+                        desc.append( r.getText() );
+                }
+            }
+        }
+    }
+    /**
+     * Convert an MJS note. Each p child becomes a note resp="MJS" with
+     * the p's content; anything else in the div is dropped. A div with no
+     * p children is copied unchanged.
+     * @param r the reader positioned at the div's start tag
+     */
+    private void copyNote( XMLStreamReader r ) throws Exception
+    {
+        XMLWriter saved = out;
+        XMLWriter raw = obtain();
+        XMLWriter notes = obtain();
+        XMLWriter content = obtain();
+        boolean empty = true;
+        boolean converted = false;
+        out = raw;
+        writeStartTag( r, "div" );
+        while ( r.next()!=XMLStreamConstants.END_ELEMENT )
+        {
+            if ( r.getEventType()==XMLStreamConstants.START_ELEMENT )
+            {
+                empty = closeStartTag( empty );
+                if ( qName(r).equals("p") )
+                {
+                    writeStartTag( r, "p" );
+                    content.reset();
+                    out = content;
+                    boolean pEmpty = copyContent( r, 2, false );
+                    out = raw;
+                    if ( !pEmpty )
+                        out.closeStartTag();
+                    out.append( content );
+                    out.endTag( "p", pEmpty );
+                    out = notes;
+                    out.startTag( "note" );
+                    out.attribute( "resp", "MJS" );
+                    if ( !pEmpty )
+                        out.closeStartTag();
+                    out.append( content );
+                    out.endTag( "note", pEmpty );
+                    out = raw;
+                    converted = true;
+                }
+                else
+                {
+                    writeStartTag( r, qName(r) );
+                    out.endTag( qName(r), copyContent(r,2,true) );
+                }
+            }
+            else if ( r.isCharacters() )
+            {
+                empty = closeStartTag( empty );
+                out.text( r.getText() );
+            }
+            else if ( r.getEventType()==XMLStreamConstants.COMMENT )
+            {
+                empty = closeStartTag( empty );
+                out.comment( r.getText() );
+            }
+        }
+        out.endTag( "div", empty );
+        out = saved;
+        out.append( converted?notes:raw );
+        release( raw );
+        release( notes );
+        release( content );
+    }
+    /**
+     * Get an empty scratch writer. Notes can nest, so several may be in 
+     * use at once.
+     * @return a writer with no content
+     */
+    private XMLWriter obtain()
+    {
+        XMLWriter w = spare.isEmpty()?new XMLWriter()
+            :spare.remove(spare.size()-1);
+        w.reset();
+        return w;
+    }
+    /**
+     * Give back a scratch writer for reuse
+     * @param w the writer
+     */
+    private void release( XMLWriter w )
+    {
+        spare.add( w );
+    }
+    /**
+     * Write the start of a start tag, with its attributes in name order.
+     * The closing bracket is written by closeStartTag or XMLWriter.endTag.
+     * @param r the reader positioned at the start tag
+     * @param name the name to give the element
+     */
+    private void writeStartTag( XMLStreamReader r, String name )
+        throws Exception
+    {
+        out.startTag( name );
+        int nNS = r.getNamespaceCount();
+        int nAttrs = r.getAttributeCount();
+        if ( nNS+nAttrs > 0 )
+        {
+            String[][] attrs = new String[nNS+nAttrs][];
+            for ( int i=0;i<nNS;i++ )
+            {
+                String prefix = r.getNamespacePrefix(i);
+                String aName = (prefix==null||prefix.length()==0)
+                    ?"xmlns":"xmlns:"+prefix;
+                attrs[i] = new String[]{aName,r.getNamespaceURI(i)};
+            }
+            for ( int i=0;i<nAttrs;i++ )
+            {
+                String prefix = r.getAttributePrefix(i);
+                String aName = (prefix==null||prefix.length()==0)
+                    ?r.getAttributeLocalName(i)
+                    :prefix+":"+r.getAttributeLocalName(i);
+                attrs[nNS+i] = new String[]{aName,r.getAttributeValue(i)};
+            }
+            Arrays.sort( attrs, ATTR_ORDER );
+            for ( int i=0;i<attrs.length;i++ )
+                out.attribute( attrs[i][0], attrs[i][1] );
+        }
+    }
+    /** sort attributes by name */
+    static Comparator<String[]> ATTR_ORDER = new Comparator<String[]>() {
+        public int compare( String[] a, String[] b )
+        {
+            return a[0].compareTo( b[0] );
+        }
+    };
+    /**
+     * Close a start tag before its first piece of content
+     * @param empty true if nothing has been written inside it yet
+     * @return false, since there is now content
+     */
+    private boolean closeStartTag( boolean empty )
+    {
+        if ( empty )
+            out.closeStartTag();
+        return false;
+    }
+}
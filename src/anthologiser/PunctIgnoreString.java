@@ -12,33 +12,50 @@
  * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
  */
 package anthologiser;
+import java.util.Arrays;
 
 /**
- * A string that compares by ignoring punctuation
+ * A string that compares by ignoring punctuation. Its letters and digits
+ * are copied out once as a collation key, which comparisons, equals and
+ * hashCode all use, so strings differing only in punctuation are equal.
  * @author desmond
  */
 public class PunctIgnoreString implements Comparable<PunctIgnoreString>
 {
     String str;
+    /** the letters and digits of str */
+    char[] key;
+    /** hash of key */
+    int hash;
     public PunctIgnoreString( String str )
     {
         this.str = str;
+        char[] chars = str.toCharArray();
+        int len = 0;
+        for ( int i=0;i<chars.length;i++ )
+        {
+            char c = chars[i];
+            if ( Character.isLetter(c) || Character.isDigit(c) )
+                chars[len++] = c;
+        }
+        key = (len==chars.length)?chars:Arrays.copyOf( chars, len );
+        hash = Arrays.hashCode( key );
     }
     public int hashCode()
     {
-        return str.hashCode();
+        return hash;
     }
     /**
      * Used by HashMap to equate keys
      * @param other the other punct-ignore
-     * @return 
+     * @return true if they have the same letters and digits
      */
     public boolean equals( Object other )
     {
         if ( other instanceof PunctIgnoreString )
         {
             PunctIgnoreString pis = (PunctIgnoreString)other;
-            return pis.str.equals(this.str);
+            return pis.hash == hash && Arrays.equals( pis.key, key );
         }
         else
             return false;
@@ -54,37 +71,19 @@ public class PunctIgnoreString implements Comparable<PunctIgnoreString>
     /**
      * Compare two string ignoring punctuation
      * @param other the other string to compare to
-     * @return 
+     * @return negative, zero or positive as this sorts before, with or 
+     * after other
      */
     @Override
     public int compareTo( PunctIgnoreString other )
     {
-        int i=0;
-        int j = 0;
-        while ( i<str.length()&&j<other.str.length() )
+        char[] k = other.key;
+        int n = Math.min( key.length, k.length );
+        for ( int i=0;i<n;i++ )
         {
-            // point to next letter/digit
-            while ( i<str.length()
-                && !Character.isLetter(str.charAt(i)) 
-                && !Character.isDigit(str.charAt(i)) )
-                i++;
-            while ( j<other.str.length()
-                && !Character.isLetter(other.str.charAt(j)) 
-                && !Character.isDigit(other.str.charAt(j)) )
-                j++;
-            if ( i == str.length() && j < other.str.length() )
-                return -1;
-            else if ( j == other.str.length() && i < str.length() )
-                return 1;
-            else if ( j == other.str.length() && i == str.length() )
-                return 0;
-            else if ( str.charAt(i) < other.str.charAt(j) )
-                return -1;
-            else if ( str.charAt(i) > other.str.charAt(j) )
-                return 1;
-            i++;
-            j++;
+            if ( key[i] != k[i] )
+                return key[i]-k[i];
         }
-        return (i==str.length() && j==other.str.length())?1:0;
+        return key.length-k.length;
     }
 }
@@ -10,12 +10,9 @@ import java.io.File;
  */
 public class TextFolder extends Folder
 {
-    TextFolder( File src, File dst ) throws Exception
-    {
-        super( src, dst );
-    }
-    protected void internalise( File dir ) throws Exception
+    TextFolder( File dst ) throws Exception
     {
+        super( dst );
     }
     protected void externalise( File dir ) throws Exception
     {
@@ -27,7 +24,7 @@ public class TextFolder extends Folder
      * @param name the name of the file minus the suffix
      * @param suffix the suffix without the dot
      */
-    protected void add( byte[] data, String relPath, String name, 
+    protected void add( XMLWriter data, String relPath, String name, 
         String hVersion, String suffix )
     {
         // implement later
@@ -5,29 +5,99 @@
  */
 
 package anthologiser;
-import java.util.StringTokenizer;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 /**
  * Encapsulate a harpur table entry
  * @author desmond
  */
-public class Titeliser 
+public class Titeliser
 {
-    static HashSet smallWords;
     static String[] stops = {"a","an","or","are","is","am","and",
         "the","of","at","to","in","on","with","from","that","his"};
+    /** the most titles remembered once cased */
+    static final int CACHE_SIZE = 4096;
+    /** stop words by perfect hash: each slot holds at most one */
+    static char[][] stopTable;
+    /** the seed that makes the hash perfect over stops */
+    static int stopSeed;
+    /** recently cased titles, least recently used first */
+    private static final LinkedHashMap<String,String> cache
+        = new LinkedHashMap<String,String>( 256, 0.75f, true )
+    {
+        protected boolean removeEldestEntry( Map.Entry<String,String> e )
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
     static
     {
-        smallWords = new HashSet<String>();
-        for ( int i=0;i<stops.length;i++ )
-            smallWords.add( stops[i] );
-        
+        int size = 32;
+        while ( stopSeed == 0 )
+        {
+            for ( int seed=1;seed<1024&&stopSeed==0;seed++ )
+            {
+                char[][] table = new char[size][];
+                int i = 0;
+                for ( ;i<stops.length;i++ )
+                {
+                    char[] word = stops[i].toCharArray();
+                    int slot = hash( word, 0, word.length, seed, size-1 );
+                    if ( table[slot] != null )
+                        break;
+                    table[slot] = word;
+                }
+                if ( i == stops.length )
+                {
+                    stopTable = table;
+                    stopSeed = seed;
+                }
+            }
+            size *= 2;
+        }
+    }
+    /**
+     * Hash a word by its length and first and last letters
+     * @param buf the buffer holding the word
+     * @param start its first index
+     * @param end one past its last
+     * @param seed the seed
+     * @param mask the table size less one
+     * @return the word's slot
+     */
+    private static int hash( char[] buf, int start, int end, int seed,
+        int mask )
+    {
+        int h = seed;
+        h = h*31+buf[start];
+        h = h*31+buf[end-1];
+        h = h*31+(end-start);
+        h ^= h>>>7;
+        return h & mask;
     }
-    static boolean isRomanNumeral( String word )
+    /**
+     * Is a word one of those left in lowercase within a title?
+     * @param buf the buffer holding the word
+     * @param start its first index
+     * @param end one past its last
+     * @return true if it is a stop word
+     */
+    static boolean isStop( char[] buf, int start, int end )
     {
-        for ( int i=0;i<word.length();i++ )
+        char[] stop = stopTable[hash(buf,start,end,stopSeed,
+            stopTable.length-1)];
+        if ( stop == null || stop.length != end-start )
+            return false;
+        for ( int i=0;i<stop.length;i++ )
+            if ( stop[i] != buf[start+i] )
+                return false;
+        return true;
+    }
+    static boolean isRomanNumeral( char[] buf, int start, int end )
+    {
+        for ( int i=start;i<end;i++ )
         {
-            char token = word.charAt(i);
+            char token = buf[i];
             switch ( token )
             {
                 case 'x': case 'i': case 'v': case 'l': case'c': case '.':
@@ -42,60 +112,136 @@ public class Titeliser
         }
         return true;
     }
-    static String uppercase( String word )
+    /**
+     * Capitalise a word. The result is never longer than the word, so
+     * it may be written over it.
+     * @param buf the buffer holding the word
+     * @param start its first index
+     * @param end one past its last
+     * @param out the buffer to write to
+     * @param pos where to write in out
+     * @return the index in out after the word
+     */
+    static int uppercase( char[] buf, int start, int end, char[] out,
+        int pos )
     {
-        StringBuilder sb = new StringBuilder();
-        if ( isRomanNumeral(word) )
-            sb.append(word.toUpperCase());
-        else if ( word.startsWith("\"") )
+        int len = end-start;
+        if ( isRomanNumeral(buf,start,end) )
+        {
+            for ( int i=start;i<end;i++ )
+                out[pos++] = Character.toUpperCase( buf[i] );
+        }
+        else if ( buf[start] == '"' )
         {
-            if ( word.length()>2 )
-            sb.append("\"");
-            sb.append(Character.toUpperCase(word.charAt(1)));
-            sb.append(word.substring(2));
+            if ( len>2 )
+                out[pos++] = '"';
+            out[pos++] = Character.toUpperCase( buf[start+1] );
+            for ( int i=start+2;i<end;i++ )
+                out[pos++] = buf[i];
         }
         else
         {
-            if ( word.length()>0 )
-                sb.append( Character.toUpperCase( word.charAt(0)) );
-            if ( word.length() > 1 )
-                sb.append( word.substring(1) );
+            out[pos++] = Character.toUpperCase( buf[start] );
+            for ( int i=start+1;i<end;i++ )
+                out[pos++] = buf[i];
         }
-        return sb.toString();
+        return pos;
     }
     /**
-     * Convert to English title case
+     * Convert to English title case. Titles already seen are remembered,
+     * since the same ones turn up in source after source.
      * @param title a title in uppercase
      * @return a title with leaned upper and lowercase
      */
     static String getTitle( String title )
     {
-        String lc = title.toLowerCase();
-        StringTokenizer st = new StringTokenizer(lc," ");
-        StringBuilder sb  = new StringBuilder();
-        while ( st.hasMoreTokens() )
+        synchronized ( cache )
         {
-            String word = st.nextToken();
-            if ( word.contains("-") )
+            String cased = cache.get( title );
+            if ( cased != null )
+                return cased;
+        }
+        String cased = caseTitle( title );
+        synchronized ( cache )
+        {
+            cache.put( title, cased );
+        }
+        return cased;
+    }
+    /**
+     * Convert to English title case in one pass over the characters.
+     * Words are separated by spaces and written out one space apart. The
+     * first word and all others not in stops are capitalised, as is each
+     * part of a hyphenated word.
+     * @param title a title in uppercase
+     * @return a title with leaned upper and lowercase
+     */
+    static String caseTitle( String title )
+    {
+        int len = title.length();
+        char[] buf = new char[len];
+        title.getChars( 0, len, buf, 0 );
+        for ( int i=0;i<len;i++ )
+        {
+            char c = buf[i];
+            if ( c >= 'A' && c <= 'Z' )
+                buf[i] = (char)(c+('a'-'A'));
+            else if ( c > 0x7F )
+            {
+                // leave non-ASCII case rules to String
+                buf = title.toLowerCase().toCharArray();
+                len = buf.length;
+                break;
+            }
+        }
+        // output never overtakes input, so write over it
+        int pos = 0;
+        int i = 0;
+        boolean first = true;
+        while ( i < len )
+        {
+            while ( i < len && buf[i] == ' ' )
+                i++;
+            if ( i == len )
+                break;
+            int start = i;
+            boolean hyphenated = false;
+            while ( i < len && buf[i] != ' ' )
+            {
+                if ( buf[i] == '-' )
+                    hyphenated = true;
+                i++;
+            }
+            if ( !first )
+                buf[pos++] = ' ';
+            if ( hyphenated )
             {
-                String[] parts = word.split("-");
-                for ( int i=0;i<parts.length;i++ )
+                // trailing hyphens are dropped
+                int end = i;
+                while ( end > start && buf[end-1] == '-' )
+                    end--;
+                int part = start;
+                for ( int j=start;j<=end;j++ )
                 {
-                    String uc = uppercase(parts[0] );
-                    sb.append(uc);
-                    if ( i < parts.length-1 )
-                        sb.append("-");
+                    if ( j == end || buf[j] == '-' )
+                    {
+                        if ( j > part )
+                            pos = uppercase( buf, part, j, buf, pos );
+                        if ( j < end )
+                            buf[pos++] = '-';
+                        part = j+1;
+                    }
                 }
             }
-            else if ( !smallWords.contains(word)||sb.length()==0 )
+            else if ( first || !isStop(buf,start,i) )
+                pos = uppercase( buf, start, i, buf, pos );
+            else
             {
-                sb.append( uppercase(word) );
+                for ( int j=start;j<i;j++ )
+                    buf[pos++] = buf[j];
             }
-            else
-                sb.append( word );
-            if ( st.hasMoreTokens() )
-                sb.append(" ");
+            first = false;
         }
-        return sb.toString();
+        return new String( buf, 0, pos );
     }
 }
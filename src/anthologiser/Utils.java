@@ -14,6 +14,7 @@
 package anthologiser;
 
 import java.io.File;
+import java.security.MessageDigest;
 
 /**
  *
@@ -106,7 +107,7 @@ public class Utils {
             if ( files[i].isDirectory() )
                 removeDir( files[i] );
             else
-                files[i].delete();
+                FileIO.delete( files[i] );
         }
         dir.delete();
     }
@@ -120,4 +121,74 @@ public class Utils {
         String spaced = path.replace( " ", "%20" );
         return spaced;
     }
+    /**
+     * Convert a digest to hexadecimal
+     * @param digest the raw digest bytes
+     * @return a lowercase hex string
+     */
+    static String toHex( byte[] digest )
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i=0;i<digest.length;i++ )
+        {
+            sb.append( Character.forDigit((digest[i]>>4)&0xF,16) );
+            sb.append( Character.forDigit(digest[i]&0xF,16) );
+        }
+        return sb.toString();
+    }
+    /**
+     * Compute the SHA-1 hash of a file's content
+     * @param file the file to hash
+     * @return the hash in hex
+     * @throws Exception 
+     */
+    static String hashFile( File file ) throws Exception
+    {
+        return toHex( digestFile(file) );
+    }
+    /**
+     * Compute the SHA-1 digest of a file's content
+     * @param file the file to digest
+     * @return the raw digest
+     * @throws Exception 
+     */
+    static byte[] digestFile( File file ) throws Exception
+    {
+        return FileIO.digest( file );
+    }
+    /**
+     * Compute the SHA-1 digest of some bytes
+     * @param data the bytes to digest
+     * @return the raw digest
+     * @throws Exception 
+     */
+    static byte[] digest( byte[] data ) throws Exception
+    {
+        return digest( data, 0, data.length );
+    }
+    /**
+     * Compute the SHA-1 digest of part of an array
+     * @param data the array
+     * @param off the offset of the bytes to digest
+     * @param len their length
+     * @return the raw digest
+     * @throws Exception 
+     */
+    static byte[] digest( byte[] data, int off, int len ) throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update( data, off, len );
+        return md.digest();
+    }
+    /**
+     * Compute the SHA-1 hash of a string
+     * @param str the string to hash
+     * @return the hash of its UTF-8 bytes in hex
+     * @throws Exception 
+     */
+    static String hashString( String str ) throws Exception
+    {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        return toHex( md.digest(str.getBytes("UTF-8")) );
+    }
 }
@@ -14,12 +14,11 @@
 package anthologiser;
 import calliope.json.JSONDocument;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileInputStream;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Represent the versions file in an anthology folder. Versions are just 
@@ -46,7 +45,7 @@ public class VersionsDocument extends JSONDocument
      * @param shortName the version's short name
      * @param description a long name or description of it
      */
-    public void addVersion( String shortName, String description )
+    public synchronized void addVersion( String shortName, String description )
     {
         items.put( shortName, description );
         /*Set<String> keys = items.keySet();
@@ -66,22 +65,22 @@ public class VersionsDocument extends JSONDocument
         JSONDocument doc = new JSONDocument();
         // it's always called this
         File dst = new File( dir, VERSIONS_FILE );
-        Set<String> keys = items.keySet();
-        Iterator<String> iter = keys.iterator();
+        // sorted, so the file doesn't depend on the order sources finished
+        String[] keys = new String[items.size()];
+        items.keySet().toArray( keys );
+        Arrays.sort( keys );
         ArrayList<JSONDocument> array = new ArrayList<JSONDocument>();
-        while ( iter.hasNext() )
+        for ( int i=0;i<keys.length;i++ )
         {
-            String key = iter.next();
+            String key = keys[i];
             JSONDocument subDoc = new JSONDocument();
             subDoc.put( JSONKeys.KEY, key );
             subDoc.put( JSONKeys.VALUE, items.get(key) );
             array.add( subDoc );
         }
         doc.put(JSONKeys.VERSIONS, array );
-        String text = doc.toString();
-        FileOutputStream fos = new FileOutputStream(dst);
-        fos.write( text.getBytes("UTF-8") );
-        fos.close();
+        String text = JSONWriter.toJSON( doc );
+        FileIO.write( dst, text.getBytes("UTF-8") );
     }
     /**
      * Load an existing versions file
@@ -92,11 +91,8 @@ public class VersionsDocument extends JSONDocument
         File src = new File( dir, VERSIONS_FILE );
         if ( src.exists() )
         {
-            FileInputStream fis = new FileInputStream( src );
-            byte[] data = new byte[(int)src.length()];
-            fis.read( data );
-            String text = new String( data, "UTF-8");
-            JSONDocument doc = JSONDocument.internalise( text );
+            JSONDocument doc = JSONDocument.internalise( 
+                FileIO.readString(src) );
             ArrayList array = (ArrayList)doc.get( JSONKeys.VERSIONS );
             for ( int i=0;i<array.size();i++ )
             {
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event: a work folder moved or written by MultiFormatDir.save.
+ * @author desmond
+ */
+@Name("anthologiser.WorkSave")
+@Label("Work Save")
+@Category("Anthologiser")
+@Description("A work folder moved or written by MultiFormatDir.save")
+public class WorkSaveEvent extends Event
+{
+    @Label("Work Key")
+    @Description("The work's key in the FileMap")
+    String workKey;
+    @Label("Folder")
+    @Description("The folder the work was saved in")
+    String folder;
+    @Label("Moved")
+    @Description("True if it moved to a new subfolder")
+    boolean moved;
+    @Label("Written")
+    @Description("True if anything was written to it")
+    boolean written;
+}
@@ -0,0 +1,250 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The works table (hWork to title) compiled from works.csv into a sorted
+ * binary file and memory-mapped, so that a run pays nothing to load it
+ * however large it is. The file is rebuilt only when the CSV's hash
+ * differs from the one recorded in it. Layout, big-endian:
+ * <pre>
+ * "AWI1" | SHA-1 of the CSV (20 bytes) | int n | int[n] entry offsets |
+ * entries: short keyLen, key, int valueLen, value (UTF-8)
+ * </pre>
+ * Entries are sorted by the unsigned bytes of their keys. Lookups only
+ * use absolute gets, so one index can be shared between threads.
+ * @author desmond
+ */
+public class WorksIndex
+{
+    static final byte[] MAGIC = {'A','W','I','1'};
+    static final int DIGEST_LEN = 20;
+    static final int HEADER_LEN = MAGIC.length+DIGEST_LEN+4;
+    /** the mapped index */
+    MappedByteBuffer map;
+    /** the number of entries */
+    int size;
+    /** orders keys by their unsigned UTF-8 bytes */
+    static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>()
+    {
+        public int compare( byte[] a, byte[] b )
+        {
+            return WorksIndex.compare( a, b, 0, b.length );
+        }
+    };
+    /**
+     * Map a compiled index
+     * @param idx the index file
+     * @throws Exception
+     */
+    private WorksIndex( File idx ) throws Exception
+    {
+        map = FileIO.map( idx );
+        size = map.getInt( MAGIC.length+DIGEST_LEN );
+    }
+    /**
+     * Open the index for a works table, compiling it first if it is
+     * missing or out of date
+     * @param csv the works table: hWork TAB title per line
+     * @param idx where the compiled index is kept
+     * @param digest the SHA-1 digest of the CSV
+     * @return the mapped index
+     * @throws Exception
+     */
+    static WorksIndex open( File csv, File idx, byte[] digest )
+        throws Exception
+    {
+        if ( !isCurrent(idx,digest) )
+            compile( csv, idx, digest );
+        return new WorksIndex( idx );
+    }
+    /**
+     * Was an index compiled from a CSV with this digest?
+     * @param idx the index file
+     * @param digest the digest of the CSV
+     * @return true if the index exists and matches
+     * @throws Exception
+     */
+    static boolean isCurrent( File idx, byte[] digest ) throws Exception
+    {
+        if ( !idx.isFile() || idx.length() < HEADER_LEN )
+            return false;
+        RandomAccessFile raf = new RandomAccessFile( idx, "r" );
+        try
+        {
+            byte[] head = new byte[MAGIC.length+DIGEST_LEN];
+            raf.readFully( head );
+            return Arrays.equals( Arrays.copyOfRange(head,0,MAGIC.length),
+                MAGIC ) && Arrays.equals( Arrays.copyOfRange(head,
+                MAGIC.length,head.length), digest );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+    /**
+     * Compile a works table. Lines without both a key and a title are
+     * ignored, and a later line for the same key replaces an earlier one.
+     * @param csv the works table
+     * @param idx the index file to write
+     * @param digest the SHA-1 digest of the CSV
+     * @throws Exception
+     */
+    static void compile( File csv, File idx, byte[] digest ) throws Exception
+    {
+        String text = FileIO.readString( csv );
+        TreeMap<byte[],byte[]> entries = new TreeMap<byte[],byte[]>(
+            BYTE_ORDER );
+        int start = 0;
+        int len = text.length();
+        while ( start < len )
+        {
+            int end = text.indexOf( '\n', start );
+            if ( end == -1 )
+                end = len;
+            int tab = text.indexOf( '\t', start );
+            if ( tab != -1 && tab < end && tab > start )
+            {
+                int tab2 = text.indexOf( '\t', tab+1 );
+                int vEnd = ( tab2 != -1 && tab2 < end ) ? tab2 : end;
+                if ( vEnd > tab+1 && tab-start <= 0xFFFF )
+                    entries.put( text.substring(start,tab).getBytes("UTF-8"),
+                        text.substring(tab+1,vEnd).getBytes("UTF-8") );
+            }
+            start = end+1;
+        }
+        int n = entries.size();
+        int total = HEADER_LEN+4*n;
+        Iterator<Map.Entry<byte[],byte[]>> iter = entries.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<byte[],byte[]> e = iter.next();
+            total += 2+e.getKey().length+4+e.getValue().length;
+        }
+        ByteBuffer bb = ByteBuffer.allocate( total );
+        bb.put( MAGIC );
+        bb.put( digest );
+        bb.putInt( n );
+        int offset = HEADER_LEN+4*n;
+        iter = entries.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<byte[],byte[]> e = iter.next();
+            bb.putInt( offset );
+            offset += 2+e.getKey().length+4+e.getValue().length;
+        }
+        iter = entries.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<byte[],byte[]> e = iter.next();
+            bb.putShort( (short)e.getKey().length );
+            bb.put( e.getKey() );
+            bb.putInt( e.getValue().length );
+            bb.put( e.getValue() );
+        }
+        File tmp = new File( idx.getPath()+".tmp" );
+        FileIO.write( tmp, bb.array() );
+        FileIO.move( tmp, idx );
+    }
+    /**
+     * Compare a key with one in the index by unsigned bytes
+     * @param key the key being looked for
+     * @param off the other key's offset in the index
+     * @param len its length
+     * @return negative, zero or positive as key is less, equal or greater
+     */
+    private int compareAt( byte[] key, int off, int len )
+    {
+        int n = Math.min( key.length, len );
+        for ( int i=0;i<n;i++ )
+        {
+            int a = key[i]&0xFF;
+            int b = map.get(off+i)&0xFF;
+            if ( a != b )
+                return a-b;
+        }
+        return key.length-len;
+    }
+    /**
+     * Compare two keys by unsigned bytes
+     * @param a the first key
+     * @param b the array holding the second key
+     * @param off the second key's offset in b
+     * @param len its length
+     * @return negative, zero or positive as a is less, equal or greater
+     */
+    static int compare( byte[] a, byte[] b, int off, int len )
+    {
+        int n = Math.min( a.length, len );
+        for ( int i=0;i<n;i++ )
+        {
+            int x = a[i]&0xFF;
+            int y = b[off+i]&0xFF;
+            if ( x != y )
+                return x-y;
+        }
+        return a.length-len;
+    }
+    /**
+     * Look up a work's title
+     * @param hWork the work's key as in the CSV
+     * @return its title or null if it isn't listed
+     * @throws Exception
+     */
+    String get( String hWork ) throws Exception
+    {
+        byte[] key = hWork.getBytes( "UTF-8" );
+        int lo = 0;
+        int hi = size-1;
+        while ( lo <= hi )
+        {
+            int mid = (lo+hi)>>>1;
+            int off = map.getInt( HEADER_LEN+4*mid );
+            int keyLen = map.getShort( off )&0xFFFF;
+            int cmp = compareAt( key, off+2, keyLen );
+            if ( cmp == 0 )
+            {
+                int vOff = off+2+keyLen;
+                int vLen = map.getInt( vOff );
+                byte[] value = new byte[vLen];
+                for ( int i=0;i<vLen;i++ )
+                    value[i] = map.get( vOff+4+i );
+                return new String( value, "UTF-8" );
+            }
+            else if ( cmp < 0 )
+                hi = mid-1;
+            else
+                lo = mid+1;
+        }
+        return null;
+    }
+    /**
+     * Get the number of works listed
+     * @return the number of entries
+     */
+    int size()
+    {
+        return size;
+    }
+}
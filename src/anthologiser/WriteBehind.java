@@ -0,0 +1,161 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Write versions to their works' folders while sources are still being
+ * split, so that the disk is busy while the parser is. Writes pass 
+ * through a bounded queue: when the writers fall behind, whoever adds 
+ * the next one waits. Each folder is created once, by whichever writer 
+ * gets to it first. The first write to fail stops the rest and is 
+ * reported to whoever adds or finishes next.
+ * @author desmond
+ */
+public class WriteBehind
+{
+    /** the writes waiting to be done */
+    ArrayBlockingQueue<Write> queue;
+    /** the threads doing them */
+    Thread[] writers;
+    /** folders known to exist */
+    ConcurrentHashMap<File,Boolean> made;
+    /** the first exception a writer hit, or null */
+    volatile Exception failure;
+    /** tells a writer to stop */
+    static final Write STOP = new Write( null, null );
+    /**
+     * One file to write
+     */
+    static class Write
+    {
+        File file;
+        PayloadStore.Payload data;
+        Write( File file, PayloadStore.Payload data )
+        {
+            this.file = file;
+            this.data = data;
+        }
+    }
+    /**
+     * Start the writers
+     * @param threads the number of files to write at once
+     * @param capacity the most writes to queue before adding one waits
+     */
+    WriteBehind( int threads, int capacity )
+    {
+        queue = new ArrayBlockingQueue<Write>( capacity );
+        made = new ConcurrentHashMap<File,Boolean>();
+        writers = new Thread[threads];
+        for ( int i=0;i<writers.length;i++ )
+        {
+            writers[i] = new Thread( new Runnable() {
+                public void run()
+                {
+                    drain();
+                }
+            }, "write-behind-"+i );
+            writers[i].setDaemon( true );
+            writers[i].start();
+        }
+    }
+    /**
+     * Do writes from the queue until told to stop. After a failure the 
+     * rest are taken off the queue but not done, so nobody waits on it.
+     */
+    private void drain()
+    {
+        try
+        {
+            while ( true )
+            {
+                Write w = queue.take();
+                if ( w == STOP )
+                    break;
+                else if ( failure == null )
+                {
+                    try
+                    {
+                        write( w );
+                    }
+                    catch ( Exception e )
+                    {
+                        synchronized ( this )
+                        {
+                            if ( failure == null )
+                                failure = e;
+                        }
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            // abandoned
+        }
+    }
+    /**
+     * Write one file, creating its folder if no writer has yet
+     * @param w the file and its content
+     * @throws Exception 
+     */
+    private void write( Write w ) throws Exception
+    {
+        File parent = w.file.getParentFile();
+        if ( !made.containsKey(parent) )
+        {
+            // another writer may make it between the two checks
+            if ( !parent.mkdirs() && !parent.isDirectory() )
+                throw new Exception("Couldn't create directory "+parent);
+            made.put( parent, Boolean.TRUE );
+        }
+        XMLFolder.writeFile( w.file, w.data );
+    }
+    /**
+     * Queue a file to be written, waiting if the queue is full
+     * @param file the file
+     * @param data its content, which must not change
+     * @throws Exception if an earlier write failed
+     */
+    void add( File file, PayloadStore.Payload data ) throws Exception
+    {
+        if ( failure != null )
+            throw failure;
+        queue.put( new Write(file,data) );
+    }
+    /**
+     * Wait for every queued file to be written and stop the writers
+     * @throws Exception if any write failed
+     */
+    void finish() throws Exception
+    {
+        for ( int i=0;i<writers.length;i++ )
+            queue.put( STOP );
+        for ( int i=0;i<writers.length;i++ )
+            writers[i].join();
+        if ( failure != null )
+            throw failure;
+    }
+    /**
+     * Stop the writers without waiting for the queue to empty
+     */
+    void abort()
+    {
+        queue.clear();
+        for ( int i=0;i<writers.length;i++ )
+            writers[i].interrupt();
+    }
+}
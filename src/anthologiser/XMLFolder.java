@@ -13,102 +13,80 @@
  */
 package anthologiser;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileInputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 /**
  * Manage an XML format folder
  * @author desmond
  */
 public class XMLFolder extends Folder
 {
-    XMLFolder( File src, File dst ) throws Exception
+    /** content of each file keyed by its path relative to the folder */
+    TreeMap<String,PayloadStore.Payload> files;
+    /** paths of files handed to a WriteBehind, not to be saved again */
+    HashSet<String> queued;
+    /** files and bytes written by the current externalise */
+    int filesOut;
+    long bytesOut;
+    XMLFolder( File dst ) throws Exception
     {
-        super( src, dst );
-        if ( src != null )
-            internalise( src );
+        super( dst );
+        files = new TreeMap<String,PayloadStore.Payload>();
+        queued = new HashSet<String>();
     }
-    private void readFile( File f, String relPath ) throws Exception
-    {
-        boolean success = true;
-        File file = null;
-        File dstFolder = new File( dst, relPath );
-        if ( !dstFolder.exists() )
-            success = dstFolder.mkdirs();
-        if ( success )
-        {
-            file = new File( dstFolder, f.getName() );
-            success = file.createNewFile();
-        }
-        if ( success )
-        {
-            FileInputStream fis = new FileInputStream( f );
-            byte[] data = new byte[(int)f.length()];
-            fis.read( data );
-            FileOutputStream fos = new FileOutputStream( file );
-            fos.write( data );
-            fos.close();
-        }
-        else
-            throw new Exception("Couldn't create "+dst.getPath());
-    }
-    private void readDir( File dir, String relPath ) throws Exception
-    {
-        File[] contents = dir.listFiles();
-        for ( int i=0;i<contents.length;i++ )
-        {
-            if ( contents[i].isDirectory() )
-                readDir( contents[i], relPath+"/"+contents[i].getName() );
-            else
-                readFile( contents[i], relPath );
-        }
-    }
-    protected void internalise( File dir ) throws Exception
+    /**
+     * Save an individual file straight from the store, unless it is 
+     * already there
+     * @param dir the format folder to save it in
+     * @param path its path relative to dir
+     * @param data its content
+     * @throws Exception 
+     */
+    private void saveFile( File dir, String path, PayloadStore.Payload data ) 
+        throws Exception
     {
-        File[] contents = dir.listFiles();
-        for ( int i=0;i<contents.length;i++ )
+        File f = new File( dir, path );
+        File parent = f.getParentFile();
+        if ( !parent.exists() && !parent.mkdirs() )
+            throw new Exception("Couldn't create directory "+parent);
+        if ( writeFile(f,data) )
         {
-            if ( contents[i].isDirectory() )
-                readDir( contents[i], contents[i].getName() );
-            else
-                readFile( contents[i], "" );
+            filesOut++;
+            bytesOut += data.size();
         }
     }
     /**
-     * Save an entire directory
-     * @param dst the directory to save dir in
-     * @param dir the source directory to save in dst
+     * Write a file's content, through the blob store if there is one
+     * @param f the file
+     * @param data its content
+     * @return false if the file already held it and was left alone
      * @throws Exception 
      */
-    private void saveDir( File dst, File dir ) throws Exception
+    static boolean writeFile( File f, PayloadStore.Payload data ) 
+        throws Exception
     {
-        File[] contents = dir.listFiles();
-        for ( int i=0;i<contents.length;i++ )
-        {
-            if ( contents[i].isDirectory() )
-            {
-                File newDst = new File( dst, contents[i].getName() );
-                saveDir( newDst, contents[i] );
-            }
-            else
-                saveFile( dst, contents[i] );
-        }
+        BlobStore blobs = BlobStore.get();
+        return ( blobs != null ) ? blobs.put( data, f ) : data.writeTo( f );
     }
     /**
-     * Save an individual file
-     * @param dir the dir to save it in
-     * @param src the source file
+     * Hand the files not yet written to a WriteBehind
+     * @param dir the work's folder on disk
+     * @param wb the writes in progress
      * @throws Exception 
      */
-    private void saveFile( File dir, File src ) throws Exception
+    protected void writeAhead( File dir, WriteBehind wb ) throws Exception
     {
-        FileInputStream fis = new FileInputStream(src);
-        int len = (int)src.length();
-        byte[] data = new byte[len];
-        fis.read( data );
-        File dst = new File( dir, src.getName() );
-        FileOutputStream fos = new FileOutputStream( dst );
-        fos.write( data );
-        fos.close();
+        File fmtDir = new File( dir, this.dst.getName() );
+        Iterator<Map.Entry<String,PayloadStore.Payload>> iter 
+            = files.entrySet().iterator();
+        while ( iter.hasNext() )
+        {
+            Map.Entry<String,PayloadStore.Payload> e = iter.next();
+            if ( queued.add(e.getKey()) )
+                wb.add( new File(fmtDir,e.getKey()), e.getValue() );
+        }
     }
     /**
      * Write out the contents to the chosen folder
@@ -117,23 +95,35 @@ public class XMLFolder extends Folder
      */
     protected void externalise( File dir ) throws Exception
     {
+        FolderWriteEvent event = new FolderWriteEvent();
+        event.begin();
+        filesOut = 0;
+        bytesOut = 0;
         boolean success = true;
         File fmtDir = new File( dir, this.dst.getName() );
         if ( !fmtDir.exists() )
             success = fmtDir.mkdirs();
         if ( success )
         {
-            File[] contents = this.dst.listFiles();
-            for ( int i=0;i<contents.length;i++ )
+            Iterator<Map.Entry<String,PayloadStore.Payload>> iter 
+                = files.entrySet().iterator();
+            while ( iter.hasNext() )
             {
-                if ( contents[i].isDirectory() )
-                    saveDir( new File(fmtDir,contents[i].getName()), contents[i] );
-                else
-                    saveFile( fmtDir, contents[i] );
+                Map.Entry<String,PayloadStore.Payload> e = iter.next();
+                if ( !queued.contains(e.getKey()) )
+                    saveFile( fmtDir, e.getKey(), e.getValue() );
             }
         }
         else
             throw new Exception("Couldn't create directory "+fmtDir );
+        if ( event.shouldCommit() )
+        {
+            event.workKey = dir.getName();
+            event.format = Format.XML.toString();
+            event.files = filesOut;
+            event.bytes = bytesOut;
+            event.commit();
+        }
     }
     /**
      * Add a file to the folder
@@ -142,39 +132,45 @@ public class XMLFolder extends Folder
      * @param name the name of the file minus the suffix
      * @param suffix the suffix without the dot
      */
-    protected void add( byte[] data, String relPath, String name, 
+    protected void add( XMLWriter data, String relPath, String name, 
         String hVersion, String suffix ) throws Exception
     {
-        boolean success = true;
-        if ( !dst.exists() )
-            success = dst.mkdirs();
-        if ( success )
+        String fName = ( hVersion != null ) 
+            ? name+"#"+hVersion+suffix : name+suffix;
+        String path = FileItem.makePath( relPath, fName );
+        if ( files.containsKey(path) )
         {
-            File f = new File( dst, relPath );
-            if ( !f.exists() )
-                success = f.mkdirs();
-            if ( success )
-            {
-                if ( hVersion != null )
-                    f = new File( f, name+"#"+hVersion+suffix );
-                else
-                    f = new File( f, name+suffix );
-                success = f.createNewFile();
-                if ( !success && f.exists() )
-                    System.out.println("File already exists!");
-                if ( success )
-                {
-                    FileOutputStream fos = new FileOutputStream( f );
-                    fos.write( data );
-                    fos.close();
-                }
-                else
-                    throw new Exception("Couldn't create file "+f.getName());
-            }
-            else
-                throw new Exception("Couldn't create directory "+f.getPath());
+            System.out.println("File already exists!");
+            throw new Exception("Couldn't create file "+fName);
         }
-        else
-            throw new Exception("Couldn't create directory "+dst.getPath());
+        files.put( path, PayloadStore.get().add(data) );
+    }
+    /**
+     * Remove a file from the folder if it is there
+     * @param name the name of the file including any suffix
+     * @return true if it was removed
+     */
+    boolean remove( String name )
+    {
+        queued.remove( name );
+        return files.remove( name ) != null;
+    }
+    /**
+     * Get the digest of a file's content
+     * @param path the file's path relative to the folder
+     * @return its SHA-1 digest in hex or null if there is no such file
+     */
+    String getDigest( String path )
+    {
+        PayloadStore.Payload p = files.get( path );
+        return ( p != null ) ? p.getDigest() : null;
+    }
+    /**
+     * Does the folder hold no files?
+     * @return true if it has no content
+     */
+    boolean isEmpty()
+    {
+        return files.isEmpty();
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * This file is part of Anthologiser.
+ * Anthologiser is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Anthologiser is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Anthologiser.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package anthologiser;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Serialise XML as UTF-8 into a growable buffer that is kept between
+ * uses. Text and attribute values are escaped, and the encoded bytes of
+ * element and attribute names are cached since the same few recur in
+ * every poem. Not thread-safe: use one per splitter.
+ * @author desmond
+ */
+public class XMLWriter
+{
+    static int INITIAL_SIZE = 8192;
+    /** escaping modes */
+    private static final int RAW = 0;
+    private static final int TEXT = 1;
+    private static final int ATTRIBUTE = 2;
+    /** the encoded content */
+    byte[] buf;
+    /** number of bytes used in buf */
+    int count;
+    /** encoded names and markup keyed by their string form */
+    HashMap<String,byte[]> names;
+    public XMLWriter()
+    {
+        buf = new byte[INITIAL_SIZE];
+        names = new HashMap<String,byte[]>();
+    }
+    /**
+     * Forget the content but keep the buffer
+     */
+    void reset()
+    {
+        count = 0;
+    }
+    /**
+     * Get the length of the content
+     * @return the number of bytes written so far
+     */
+    int size()
+    {
+        return count;
+    }
+    /**
+     * Make sure there is room for more bytes
+     * @param extra the number of bytes about to be written
+     */
+    private void ensure( int extra )
+    {
+        if ( count+extra > buf.length )
+        {
+            int newLen = Math.max( buf.length*2, count+extra );
+            byte[] newBuf = new byte[newLen];
+            System.arraycopy( buf, 0, newBuf, 0, count );
+            buf = newBuf;
+        }
+    }
+    /**
+     * Append bytes as they are
+     * @param data the bytes
+     */
+    private void append( byte[] data )
+    {
+        ensure( data.length );
+        System.arraycopy( data, 0, buf, count, data.length );
+        count += data.length;
+    }
+    /**
+     * Write a name or piece of fixed markup, encoding it once only
+     * @param str the name or markup, which must not need escaping
+     */
+    void markup( String str ) throws Exception
+    {
+        byte[] data = names.get( str );
+        if ( data == null )
+        {
+            data = str.getBytes( "UTF-8" );
+            names.put( str, data );
+        }
+        append( data );
+    }
+    /**
+     * Open a start tag. Attributes may follow before closeStartTag.
+     * @param name the element's name
+     */
+    void startTag( String name ) throws Exception
+    {
+        append( (byte)'<' );
+        markup( name );
+    }
+    /**
+     * Write an attribute in the open start tag
+     * @param name the attribute's name
+     * @param value its unescaped value
+     */
+    void attribute( String name, String value ) throws Exception
+    {
+        append( (byte)' ' );
+        markup( name );
+        append( (byte)'=' );
+        append( (byte)'"' );
+        encode( value, ATTRIBUTE );
+        append( (byte)'"' );
+    }
+    /**
+     * Close a start tag before its content
+     */
+    void closeStartTag()
+    {
+        append( (byte)'>' );
+    }
+    /**
+     * Write an end tag, or close the open start tag as empty
+     * @param name the element's name
+     * @param empty true if it had no content
+     */
+    void endTag( String name, boolean empty ) throws Exception
+    {
+        if ( empty )
+        {
+            append( (byte)'/' );
+            append( (byte)'>' );
+        }
+        else
+        {
+            append( (byte)'<' );
+            append( (byte)'/' );
+            markup( name );
+            append( (byte)'>' );
+        }
+    }
+    /**
+     * Write character data, escaping & and &lt;
+     * @param text the unescaped text
+     */
+    void text( String text )
+    {
+        encode( text, TEXT );
+    }
+    /**
+     * Write a comment
+     * @param text the comment's content
+     */
+    void comment( String text )
+    {
+        append( (byte)'<' );
+        append( (byte)'!' );
+        append( (byte)'-' );
+        append( (byte)'-' );
+        encode( text, RAW );
+        append( (byte)'-' );
+        append( (byte)'-' );
+        append( (byte)'>' );
+    }
+    /**
+     * Append the content of another writer
+     * @param other the writer to copy from
+     */
+    void append( XMLWriter other )
+    {
+        ensure( other.count );
+        System.arraycopy( other.buf, 0, buf, count, other.count );
+        count += other.count;
+    }
+    private void append( byte b )
+    {
+        if ( count == buf.length )
+            ensure( 1 );
+        buf[count++] = b;
+    }
+    /**
+     * Encode a string as UTF-8, escaping as required
+     * @param str the string
+     * @param mode TEXT, ATTRIBUTE or RAW for no escaping
+     */
+    private void encode( String str, int mode )
+    {
+        int len = str.length();
+        for ( int i=0;i<len;i++ )
+        {
+            char c = str.charAt( i );
+            if ( c < 0x80 )
+            {
+                if ( mode != RAW && (c=='&'||c=='<'||(c=='"'&&mode==ATTRIBUTE)) )
+                    escape( c );
+                else
+                    append( (byte)c );
+            }
+            else if ( c < 0x800 )
+            {
+                ensure( 2 );
+                buf[count++] = (byte)(0xC0|(c>>6));
+                buf[count++] = (byte)(0x80|(c&0x3F));
+            }
+            else if ( Character.isHighSurrogate(c) && i+1 < len
+                && Character.isLowSurrogate(str.charAt(i+1)) )
+            {
+                int cp = Character.toCodePoint( c, str.charAt(++i) );
+                ensure( 4 );
+                buf[count++] = (byte)(0xF0|(cp>>18));
+                buf[count++] = (byte)(0x80|((cp>>12)&0x3F));
+                buf[count++] = (byte)(0x80|((cp>>6)&0x3F));
+                buf[count++] = (byte)(0x80|(cp&0x3F));
+            }
+            else if ( Character.isSurrogate(c) )
+                append( (byte)'?' );    // unpaired, as String.getBytes does
+            else
+            {
+                ensure( 3 );
+                buf[count++] = (byte)(0xE0|(c>>12));
+                buf[count++] = (byte)(0x80|((c>>6)&0x3F));
+                buf[count++] = (byte)(0x80|(c&0x3F));
+            }
+        }
+    }
+    /**
+     * Write the entity for a special character
+     * @param c the character
+     */
+    private void escape( char c )
+    {
+        String entity = (c=='&')?"&amp;":(c=='<')?"&lt;":"&quot;";
+        ensure( entity.length() );
+        for ( int i=0;i<entity.length();i++ )
+            buf[count++] = (byte)entity.charAt(i);
+    }
+    /**
+     * Write the content to a stream
+     * @param out the stream
+     * @throws Exception
+     */
+    void writeTo( OutputStream out ) throws Exception
+    {
+        out.write( buf, 0, count );
+    }
+    /**
+     * Write the content to a file, replacing it
+     * @param dst the file
+     * @throws Exception
+     */
+    void writeTo( File dst ) throws Exception
+    {
+        FileIO.write( dst, buf, 0, count );
+    }
+    /**
+     * Get a copy of the content
+     * @return the bytes written so far
+     */
+    byte[] toByteArray()
+    {
+        byte[] data = new byte[count];
+        System.arraycopy( buf, 0, data, 0, count );
+        return data;
+    }
+}